@@ -0,0 +1,130 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * A log handler that hands the records to another handler on a background
+ * thread. The records are kept in a bounded ring buffer. When the buffer is
+ * full a debug or trace record is dropped and counted instead of stalling the
+ * update, and the number of dropped records is reported when the handler is
+ * flushed or closed. Any other record is written on the calling thread after
+ * the queued records, so warnings and errors are never lost.
+ * <p>
+ * The writer thread and {@link #flush()} take and write the records under the
+ * same lock, so the records are written in the order they were published.
+ * Publishing does not take the lock, it only wakes the writer thread.
+ */
+class AsyncLogHandler extends Handler {
+
+	private static final int DEFAULT_CAPACITY = 8192;
+
+	private static final long POLL_TIMEOUT = 100;
+
+	private final Handler handler;
+
+	private final BlockingQueue<LogRecord> queue;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final Thread writer;
+
+	private volatile boolean closed;
+
+	public AsyncLogHandler( Handler handler ) {
+		this( handler, DEFAULT_CAPACITY );
+	}
+
+	public AsyncLogHandler( Handler handler, int capacity ) {
+		this.handler = handler;
+		this.queue = new ArrayBlockingQueue<>( capacity );
+		super.setLevel( handler.getLevel() );
+		writer = new Thread( this::drain, "Updater log writer" );
+		writer.setDaemon( true );
+		writer.start();
+	}
+
+	@Override
+	public void publish( LogRecord record ) {
+		if( closed || !isLoggable( record ) ) return;
+		// Capture the caller now since the writer thread cannot infer it later.
+		record.getSourceClassName();
+		if( queue.offer( record ) ) {
+			LockSupport.unpark( writer );
+		} else if( record.getLevel().intValue() > Log.TRACE.intValue() ) {
+			synchronized( this ) {
+				write();
+				handler.publish( record );
+			}
+		} else {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Write the queued records and flush the wrapped handler.
+	 */
+	@Override
+	public synchronized void flush() {
+		write();
+		reportDropped();
+		handler.flush();
+	}
+
+	@Override
+	public void close() {
+		if( closed ) return;
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join( TimeUnit.SECONDS.toMillis( 5 ) );
+		} catch( InterruptedException exception ) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		handler.close();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	private void drain() {
+		while( !closed ) {
+			try {
+				synchronized( this ) {
+					write();
+				}
+			} catch( RuntimeException exception ) {
+				reportError( null, exception, ErrorManager.WRITE_FAILURE );
+			}
+			// Closing interrupts the writer, the rest is written by close().
+			LockSupport.parkNanos( this, TimeUnit.MILLISECONDS.toNanos( POLL_TIMEOUT ) );
+		}
+	}
+
+	/**
+	 * Write the queued records. The caller holds the lock.
+	 */
+	private void write() {
+		LogRecord record;
+		while( (record = queue.poll()) != null ) {
+			handler.publish( record );
+		}
+	}
+
+	private void reportDropped() {
+		long count = dropped.getAndSet( 0 );
+		if( count == 0 ) return;
+		handler.publish( new LogRecord( Log.WARN, "Log buffer full, dropped " + count + " records" ) );
+	}
+
+}
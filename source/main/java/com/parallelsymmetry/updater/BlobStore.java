@@ -0,0 +1,162 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A content addressed store of the files installed in the target folders. The
+ * store holds one file, or blob, for each content and mode, named by the
+ * digest. The installed files are hard links to the blobs, so identical files
+ * in different targets are written and cached once.
+ * <p>
+ * Since the installed files share the blob, the installed files must not be
+ * changed in place. The updater never changes an installed file in place, it
+ * stages a new file and renames it. Since another program can, a blob is
+ * checked against its key before it is linked and a blob that no longer
+ * matches is removed. A blob that no installed file links to any more is
+ * removed by {@link #collect()}.
+ */
+class BlobStore {
+
+	private Path folder;
+
+	public BlobStore( File folder ) {
+		this.folder = folder.getAbsoluteFile().toPath();
+	}
+
+	public File getFolder() {
+		return folder.toFile();
+	}
+
+	/**
+	 * Get the key of a blob. Files with the same content but a different mode
+	 * are kept apart since the mode is shared by the links.
+	 *
+	 * @param digest The content digest
+	 * @param mode The unix mode or -1 if there is none
+	 * @return The blob key
+	 */
+	public static String getKey( String digest, int mode ) {
+		return mode < 0 ? digest : digest + "-" + Integer.toOctalString( mode );
+	}
+
+	/**
+	 * Get the content digest of a blob key.
+	 */
+	static String getDigest( String key ) {
+		int index = key.indexOf( '-' );
+		return index < 0 ? key : key.substring( 0, index );
+	}
+
+	/**
+	 * Get the path of a blob. The key comes from the archive manifest, so it is
+	 * resolved like an entry name to keep the blob in the store.
+	 */
+	Path getPath( String key ) throws IOException {
+		if( key.length() < 2 ) throw new IOException( "Invalid blob key: " + key );
+		return UpdateArchives.resolve( folder, key.substring( 0, 2 ) + "/" + key );
+	}
+
+	/**
+	 * Link a file to a blob if the store has the blob and the blob still has
+	 * the content of its key. The size is checked first and then the digest,
+	 * which reads the blob but saves writing the file.
+	 *
+	 * @param key The blob key
+	 * @param file The file to create
+	 * @param size The size of the content
+	 * @param throttle The I/O throttle to charge the check to
+	 * @return True if the file was linked or false if the store does not have
+	 * the blob or the blob was changed
+	 */
+	public boolean link( String key, Path file, long size, IoThrottle throttle ) throws IOException {
+		Path blob = getPath( key );
+		if( !Files.exists( blob ) ) return false;
+		try {
+			if( Files.size( blob ) != size || !getDigest( key ).equals( BufferPool.get().digest( blob, throttle ) ) ) {
+				Log.write( Log.WARN, "Removing changed blob: ", blob );
+				Files.deleteIfExists( blob );
+				return false;
+			}
+		} catch( NoSuchFileException exception ) {
+			return false;
+		}
+
+		try {
+			Files.deleteIfExists( file );
+			Files.createLink( file, blob );
+			return true;
+		} catch( NoSuchFileException exception ) {
+			// The blob was collected after the check
+			return false;
+		} catch( IOException | UnsupportedOperationException exception ) {
+			if( UpdateLog.isActive( Log.DEBUG ) ) Log.write( Log.DEBUG, "Could not link blob: ", blob, " ", exception.getMessage() );
+			return false;
+		}
+	}
+
+	/**
+	 * Add a file to the store. If the store already has the blob, the file is
+	 * replaced with a link to the blob.
+	 *
+	 * @param key The blob key
+	 * @param file The file with the blob content
+	 * @param throttle The I/O throttle to charge a check of the blob to
+	 */
+	public void add( String key, Path file, IoThrottle throttle ) throws IOException {
+		Path blob = getPath( key );
+		Files.createDirectories( blob.getParent() );
+		try {
+			Files.createLink( blob, file );
+		} catch( FileAlreadyExistsException exception ) {
+			// Another update stored the same content first
+			Path temp = file.resolveSibling( file.getFileName() + ".blob" );
+			if( link( key, temp, Files.size( file ), throttle ) ) Files.move( temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} catch( IOException | UnsupportedOperationException exception ) {
+			if( UpdateLog.isActive( Log.DEBUG ) ) Log.write( Log.DEBUG, "Could not store blob: ", file, " ", exception.getMessage() );
+		}
+	}
+
+	/**
+	 * Remove the blobs no installed file links to any more. This needs the
+	 * link count of the files, which is only available on unix systems.
+	 *
+	 * @return The number of blobs removed
+	 */
+	public int collect() throws IOException {
+		if( !Files.isDirectory( folder ) ) return 0;
+		if( !Files.getFileStore( folder ).supportsFileAttributeView( "unix" ) ) {
+			Log.write( Log.WARN, "Blob store cleanup not supported: ", folder );
+			return 0;
+		}
+
+		AtomicInteger count = new AtomicInteger();
+		Files.walkFileTree( folder, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) throws IOException {
+				if( (Integer)Files.getAttribute( file, "unix:nlink", LinkOption.NOFOLLOW_LINKS ) <= 1 ) {
+					Files.deleteIfExists( file );
+					count.incrementAndGet();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory( Path dir, IOException exception ) {
+				if( !dir.equals( folder ) ) dir.toFile().delete();
+				return FileVisitResult.CONTINUE;
+			}
+
+		} );
+
+		Log.write( Log.DEBUG, "Collected blobs: ", folder, " (", count.get(), " removed)" );
+		return count.get();
+	}
+
+}
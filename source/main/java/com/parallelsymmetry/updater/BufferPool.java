@@ -0,0 +1,114 @@
+package com.parallelsymmetry.updater;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+/**
+ * The reusable buffers, inflater and checksums of one worker thread. Staging
+ * an archive of many small files would otherwise allocate these for every
+ * entry and spend much of its time in garbage collection.
+ */
+final class BufferPool {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<BufferPool> POOLS = ThreadLocal.withInitial( () -> new BufferPool( true ) );
+
+	private final ByteBuffer input;
+
+	private final ByteBuffer output;
+
+	private final Inflater inflater;
+
+	private final CRC32 crc;
+
+	private final MessageDigest digest;
+
+	/**
+	 * Create a buffer pool.
+	 *
+	 * @param direct True to use direct buffers, false to use heap buffers
+	 */
+	BufferPool( boolean direct ) {
+		input = allocate( direct );
+		output = allocate( direct );
+		inflater = new Inflater( true );
+		crc = new CRC32();
+		digest = UpdateManifest.createDigest();
+	}
+
+	/**
+	 * Get the buffer pool of the current thread.
+	 */
+	static BufferPool get() {
+		return POOLS.get();
+	}
+
+	ByteBuffer getInput() {
+		input.clear();
+		return input;
+	}
+
+	ByteBuffer getOutput() {
+		output.clear();
+		return output;
+	}
+
+	Inflater getInflater() {
+		inflater.reset();
+		return inflater;
+	}
+
+	CRC32 getCrc() {
+		crc.reset();
+		return crc;
+	}
+
+	MessageDigest getDigest() {
+		digest.reset();
+		return digest;
+	}
+
+	/**
+	 * Get the SHA-256 digest of a file with the input buffer and digest of this
+	 * pool.
+	 *
+	 * @param file The file to read
+	 * @param throttle The I/O throttle to charge the reads to
+	 * @return The digest as lowercase hex
+	 */
+	String digest( Path file, IoThrottle throttle ) throws IOException {
+		MessageDigest digest = getDigest();
+		try( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+			ByteBuffer buffer = getInput();
+			int count;
+			while( (count = channel.read( buffer )) > -1 ) {
+				throttle.acquireRead( count );
+				buffer.flip();
+				digest.update( buffer );
+				buffer.clear();
+			}
+		}
+		return UpdateManifest.toHex( digest.digest() );
+	}
+
+	/**
+	 * Get the path of a file with a suffix added to the name.
+	 */
+	Path getPath( Path file, String suffix ) {
+		return file.resolveSibling( file.getFileName() + suffix );
+	}
+
+	private static ByteBuffer allocate( boolean direct ) {
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect( BUFFER_SIZE ) : ByteBuffer.allocate( BUFFER_SIZE );
+		return buffer.order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+}
@@ -0,0 +1,161 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.FileUtil;
+import com.parallelsymmetry.utility.TextUtil;
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The backups of a committed update that are still to be removed. When the
+ * cleanup is deferred the backups are recorded in a journal next to the
+ * target folder so the application can be launched right away and the
+ * backups removed afterward. The journal is synced to disk before the update
+ * returns, so if the updater exits before the cleanup finishes the next
+ * update of the target finishes it.
+ * <p>
+ * Only files and folders with the backup suffix inside the target folder, and
+ * the backup of the target folder itself, are removed.
+ */
+class CleanupJournal {
+
+	static final String SUFFIX = ".cleanup";
+
+	private static final String HEADER = "#updater-cleanup 1";
+
+	private File target;
+
+	private File file;
+
+	private CleanupJournal( File target ) {
+		this.target = target.getAbsoluteFile();
+		this.file = new File( this.target.getParentFile(), this.target.getName() + SUFFIX );
+	}
+
+	public static CleanupJournal of( File target ) {
+		return new CleanupJournal( target );
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Add backups to the journal. Backups already in the journal are kept.
+	 *
+	 * @param backups The backup files or folders
+	 */
+	public void record( List<File> backups ) throws IOException {
+		Set<String> paths = new LinkedHashSet<>( read() );
+		for( File backup : backups ) {
+			paths.add( backup.getAbsolutePath() );
+		}
+		write( new ArrayList<>( paths ) );
+		Log.write( Log.DEBUG, "Recorded cleanup: ", file, " (", paths.size(), " backups)" );
+	}
+
+	/**
+	 * Remove the backups in the journal and then the journal. Backups that
+	 * cannot be removed stay in the journal for the next cleanup.
+	 *
+	 * @param throttle The I/O throttle that paces the removals
+	 * @return The number of backups removed
+	 */
+	public int clean( IoThrottle throttle ) throws IOException {
+		if( !file.exists() ) return 0;
+
+		List<String> remaining = new ArrayList<>();
+		int count = 0;
+		for( String path : read() ) {
+			File backup = new File( path );
+			if( !isBackup( backup ) ) {
+				Log.write( Log.WARN, "Skipping cleanup outside of target: ", path );
+				continue;
+			}
+			try {
+				throttle.acquireWrite( IoThrottle.METADATA_COST );
+			} catch( InterruptedIOException exception ) {
+				remaining.add( path );
+				continue;
+			}
+			if( backup.exists() ) FileUtil.delete( backup );
+			if( backup.exists() ) {
+				remaining.add( path );
+			} else {
+				count++;
+			}
+		}
+
+		if( remaining.isEmpty() ) {
+			Files.deleteIfExists( file.toPath() );
+		} else {
+			write( remaining );
+			Log.write( Log.WARN, "Could not remove ", remaining.size(), " backups, see: ", file );
+		}
+
+		return count;
+	}
+
+	private boolean isBackup( File backup ) {
+		if( !backup.getName().endsWith( FileUpdateTask.DEL_SUFFIX ) ) return false;
+		Path path = backup.toPath().normalize();
+		Path folder = target.toPath();
+		return path.startsWith( folder ) || path.equals( folder.resolveSibling( target.getName() + FileUpdateTask.DEL_SUFFIX ) );
+	}
+
+	private List<String> read() throws IOException {
+		List<String> paths = new ArrayList<>();
+		if( !file.exists() ) return paths;
+
+		try( BufferedReader reader = Files.newBufferedReader( file.toPath(), TextUtil.DEFAULT_CHARSET ) ) {
+			String header = reader.readLine();
+			if( !HEADER.equals( header ) ) throw new IOException( "Unknown cleanup journal format: " + file );
+			String line;
+			while( (line = reader.readLine()) != null ) {
+				if( !line.isEmpty() ) paths.add( line );
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Write the journal to a temporary file, sync it and rename it over the
+	 * previous journal.
+	 */
+	private void write( List<String> paths ) throws IOException {
+		StringBuilder builder = new StringBuilder( HEADER ).append( '\n' );
+		for( String path : paths ) {
+			builder.append( path ).append( '\n' );
+		}
+
+		Path temp = file.toPath().resolveSibling( file.getName() + ".tmp" );
+		try( FileChannel channel = FileChannel.open( temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) ) {
+			ByteBuffer buffer = TextUtil.DEFAULT_CHARSET.encode( builder.toString() );
+			while( buffer.hasRemaining() ) {
+				channel.write( buffer );
+			}
+			channel.force( true );
+		}
+
+		try {
+			Files.move( temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} catch( AtomicMoveNotSupportedException exception ) {
+			Files.move( temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+}
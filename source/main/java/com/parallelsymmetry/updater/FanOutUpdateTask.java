@@ -0,0 +1,197 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Updates several target folders from the same archives. The archives are
+ * read and the entries extracted for the first target only. The other
+ * targets hard link the files staged in the first target, or copy them when
+ * the targets are on another file system, so the cost of reading and
+ * inflating the archives does not grow with the number of targets.
+ * <p>
+ * Every target is staged before any target is committed. If staging or
+ * committing any target fails, every target is reverted.
+ */
+public class FanOutUpdateTask implements UpdateTask {
+
+	private List<FileUpdateTask> tasks;
+
+	/**
+	 * Create a fan-out task. The tasks must have the same sources and different
+	 * targets and must not use a swap commit.
+	 *
+	 * @param tasks The file update tasks, one for each target
+	 */
+	public FanOutUpdateTask( List<FileUpdateTask> tasks ) {
+		if( tasks.isEmpty() ) throw new IllegalArgumentException( "No update tasks specified." );
+		for( FileUpdateTask task : tasks ) {
+			if( task.isSwap() ) throw new IllegalArgumentException( "Swap updates cannot be fanned out: " + task.getTarget() );
+			if( !task.getSources().equals( tasks.get( 0 ).getSources() ) ) throw new IllegalArgumentException( "Update sources do not match: " + task.getTarget() );
+		}
+		this.tasks = new ArrayList<>( tasks );
+	}
+
+	public List<FileUpdateTask> getTasks() {
+		return Collections.unmodifiableList( tasks );
+	}
+
+	@Override
+	public boolean needsElevation() {
+		for( FileUpdateTask task : tasks ) {
+			if( task.needsElevation() ) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the total size of the files written to all the targets.
+	 */
+	@Override
+	public long getSize() throws IOException {
+		return tasks.get( 0 ).getSize() * tasks.size();
+	}
+
+	@Override
+	public void prepare() throws IOException {
+		tasks.get( 0 ).prepare();
+	}
+
+	/**
+	 * Lock every target, in path order so two fan-out updates of overlapping
+	 * targets cannot each hold a lock the other waits for, then update them.
+	 */
+	@Override
+	public void execute() throws Throwable {
+		List<FileUpdateTask> order = new ArrayList<>( tasks );
+		order.sort( Comparator.comparing( task -> task.getTarget().getAbsolutePath() ) );
+
+		List<TargetLock> locks = new ArrayList<>();
+		try {
+			for( FileUpdateTask task : order ) {
+				locks.add( task.lock() );
+			}
+			update();
+		} finally {
+			for( int index = locks.size() - 1; index >= 0; index-- ) {
+				locks.get( index ).close();
+			}
+			tasks.get( 0 ).releasePrefetch();
+		}
+	}
+
+	private void update() throws Throwable {
+		FileUpdateTask origin = tasks.get( 0 );
+		for( int index = 1; index < tasks.size(); index++ ) {
+			tasks.get( index ).setOrigin( origin );
+		}
+
+		for( FileUpdateTask task : tasks ) {
+			task.begin();
+		}
+
+		// A failed task reverts itself, the other tasks are reverted here.
+		int count = 0;
+		try {
+			for( FileUpdateTask task : tasks ) {
+				task.stageUpdate();
+				count++;
+			}
+		} catch( Throwable throwable ) {
+			revert( count, -1 );
+			throw throwable;
+		}
+
+		count = 0;
+		try {
+			for( FileUpdateTask task : tasks ) {
+				task.commitUpdate();
+				count++;
+			}
+		} catch( Throwable throwable ) {
+			revert( tasks.size(), count );
+			throw throwable;
+		}
+
+		for( FileUpdateTask task : tasks ) {
+			task.finishUpdate();
+		}
+	}
+
+	@Override
+	public void cleanup() throws IOException {
+		for( FileUpdateTask task : tasks ) {
+			task.cleanup();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Update " + tasks.size() + " targets ...";
+	}
+
+	/**
+	 * Revert the first tasks, in reverse order, skipping the task that failed.
+	 */
+	private void revert( int count, int failed ) {
+		for( int index = count - 1; index >= 0; index-- ) {
+			if( index == failed ) continue;
+			FileUpdateTask task = tasks.get( index );
+			try {
+				task.revertUpdate();
+			} catch( RuntimeException exception ) {
+				Log.write( Log.ERROR, "Could not revert: ", task.getTarget(), " ", exception );
+			}
+		}
+	}
+
+	/**
+	 * Group consecutive file update tasks that have the same sources and
+	 * different targets into fan-out tasks. The order of the updates is kept.
+	 * Grouped targets succeed or fail together, so grouping is only done when
+	 * asked for.
+	 *
+	 * @param tasks The update tasks
+	 * @return The update tasks with the groups replaced by fan-out tasks
+	 */
+	public static List<UpdateTask> group( List<UpdateTask> tasks ) {
+		List<UpdateTask> result = new ArrayList<>();
+		List<FileUpdateTask> group = new ArrayList<>();
+		for( UpdateTask task : tasks ) {
+			if( task instanceof FileUpdateTask && !((FileUpdateTask)task).isSwap() ) {
+				FileUpdateTask fileTask = (FileUpdateTask)task;
+				if( !group.isEmpty() && !isGroupable( group, fileTask ) ) addGroup( result, group );
+				group.add( fileTask );
+			} else {
+				addGroup( result, group );
+				result.add( task );
+			}
+		}
+		addGroup( result, group );
+		return result;
+	}
+
+	/**
+	 * Check that a task has the sources of the group and a target that is not
+	 * in the group yet, since a target can only be locked once.
+	 */
+	private static boolean isGroupable( List<FileUpdateTask> group, FileUpdateTask task ) {
+		if( !group.get( 0 ).getSources().equals( task.getSources() ) ) return false;
+		for( FileUpdateTask member : group ) {
+			if( member.getTarget().equals( task.getTarget() ) ) return false;
+		}
+		return true;
+	}
+
+	private static void addGroup( List<UpdateTask> result, List<FileUpdateTask> group ) {
+		if( group.size() == 1 ) result.add( group.get( 0 ) );
+		if( group.size() > 1 ) result.add( new FanOutUpdateTask( group ) );
+		group.clear();
+	}
+
+}
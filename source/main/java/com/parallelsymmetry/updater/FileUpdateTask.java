@@ -1,62 +1,503 @@
 package com.parallelsymmetry.updater;
 
 import com.parallelsymmetry.utility.FileUtil;
-import com.parallelsymmetry.utility.HashUtil;
-import com.parallelsymmetry.utility.IoUtil;
 import com.parallelsymmetry.utility.log.Log;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.*;
 
 public class FileUpdateTask implements UpdateTask {
 
-	private static final String DEL_SUFFIX = ".del";
+	static final String DEL_SUFFIX = ".del";
 
-	private static final String ADD_SUFFIX = ".add";
+	static final String ADD_SUFFIX = ".add";
 
-	private File source;
+	/**
+	 * The default time to wait for another update of the same target, ten
+	 * minutes.
+	 */
+	public static final long DEFAULT_LOCK_TIMEOUT = 600000;
+
+	/**
+	 * The most archive content read ahead by all the tasks together. The
+	 * content only helps while it stays in the file cache.
+	 */
+	private static final long PREFETCH_LIMIT = 256L * 1024 * 1024;
+
+	private static final AtomicLong prefetchBudget = new AtomicLong( PREFETCH_LIMIT );
+
+	private List<File> sources;
 
 	private File target;
 
+	private boolean swap;
+
+	private boolean deferCleanup;
+
+	private boolean prune;
+
+	private boolean sequential;
+
+	private BlobStore store;
+
+	private long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+
+	private UpdateArchives archives;
+
+	private volatile UpdateArchives prepared;
+
+	private volatile long size = -1;
+
+	private final AtomicLong prefetched = new AtomicLong();
+
+	private File archive;
+
+	private List<String> removals;
+
+	private FileUpdateTask origin;
+
+	private Map<String, Path> staged;
+
+	private InstallIndex index;
+
+	private IoThrottle throttle = IoThrottle.NONE;
+
+	private RetryPolicy retry = RetryPolicy.DEFAULT;
+
+	private int retries;
+
+	private long retryTime;
+
+	private long stageTime;
+
+	private long commitTime;
+
+	private long bytes;
+
+	private long files;
+
+	private UpdateListener listener;
+
+	private UpdateFault fault;
+
+	private List<File> committed;
+
+	private List<File> backups;
+
+	private List<Path> folders;
+
+	private Path lastFolder;
+
+	private boolean posix;
+
 	public FileUpdateTask( File source, File target ) {
-		this.source = source;
+		this.sources = new ArrayList<>();
+		this.sources.add( source );
 		this.target = target;
 	}
 
+	public File getSource() {
+		return sources.get( 0 );
+	}
+
+	public List<File> getSources() {
+		return Collections.unmodifiableList( sources );
+	}
+
+	/**
+	 * Add an archive to apply after the archives already in the task. The
+	 * archives are merged so that each file is extracted once from the last
+	 * archive that contains it, instead of applying each archive in turn.
+	 *
+	 * @param source The update archive
+	 */
+	public void addSource( File source ) {
+		sources.add( source );
+		prepared = null;
+		size = -1;
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	/**
+	 * Check if the update needs an elevated updater. Besides the target, the
+	 * parent of the target must be writable for the target lock and, with a
+	 * swap commit, for the stage and backup folders.
+	 */
 	public boolean needsElevation() {
+		File parent = target.getAbsoluteFile().getParentFile();
+		if( parent != null && parent.exists() && !FileUtil.isWritable( parent ) ) return true;
 		return target.exists() && !FileUtil.isWritable( target );
 	}
 
+	public boolean isSwap() {
+		return swap;
+	}
+
+	/**
+	 * Set the task to stage a complete copy of the target folder next to the
+	 * target and switch to it with a single folder rename. Unchanged files are
+	 * hard linked into the copy so the staging cost depends on the archive and
+	 * not on the size of the installed tree.
+	 *
+	 * @param swap True to use a folder swap commit
+	 */
+	public void setSwap( boolean swap ) {
+		this.swap = swap;
+	}
+
+	public boolean isDeferCleanup() {
+		return deferCleanup;
+	}
+
+	/**
+	 * Set the task to leave the backups of the replaced files in place after
+	 * the commit and record them in a cleanup journal instead. The backups are
+	 * removed by {@link #cleanup()}, or by the next update of the target if the
+	 * cleanup does not run.
+	 *
+	 * @param deferCleanup True to defer the removal of the backups
+	 */
+	public void setDeferCleanup( boolean deferCleanup ) {
+		this.deferCleanup = deferCleanup;
+	}
+
+	public boolean isPrune() {
+		return prune;
+	}
+
+	/**
+	 * Set the task to remove every file under the target folder that is not in
+	 * the update archives. Files in the removal list of an archive are removed
+	 * either way. The removed files are staged as backups so they are removed
+	 * with the commit and restored by a revert.
+	 *
+	 * @param prune True to remove the files not in the archives
+	 */
+	public void setPrune( boolean prune ) {
+		this.prune = prune;
+	}
+
+	public boolean isSequential() {
+		return sequential;
+	}
+
+	/**
+	 * Set the task to order its I/O for disks and file systems where seeks and
+	 * round trips are slow. The archive entries are read in the order they are
+	 * stored, grouped by target folder, and the staged files are committed and
+	 * reverted one folder at a time.
+	 *
+	 * @param sequential True to order the I/O by location
+	 */
+	public void setSequential( boolean sequential ) {
+		this.sequential = sequential;
+	}
+
+	public File getStore() {
+		return store == null ? null : store.getFolder();
+	}
+
+	/**
+	 * Set a content store to share identical files between targets. Each file
+	 * is written to the store once and linked into the targets. The store must
+	 * be on the same file system as the targets. Files are written as usual
+	 * when they cannot be linked.
+	 *
+	 * @param folder The store folder or null to not use a store
+	 */
+	public void setStore( File folder ) {
+		this.store = folder == null ? null : new BlobStore( folder );
+	}
+
+	public long getLockTimeout() {
+		return lockTimeout;
+	}
+
+	/**
+	 * Set how long to wait for other updates of the target folder, in this or
+	 * another process, to finish.
+	 *
+	 * @param timeout The timeout in milliseconds or zero to wait as long as it
+	 * takes
+	 */
+	public void setLockTimeout( long timeout ) {
+		this.lockTimeout = timeout;
+	}
+
+	public IoThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * Set the throttle that limits the bytes read and written while staging,
+	 * hashing, committing and reverting.
+	 *
+	 * @param throttle The I/O throttle
+	 */
+	public void setThrottle( IoThrottle throttle ) {
+		this.throttle = throttle == null ? IoThrottle.NONE : throttle;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retry;
+	}
+
+	/**
+	 * Set the policy for retrying renames, removals and opens that fail
+	 * because a file is briefly busy.
+	 *
+	 * @param retry The retry policy
+	 */
+	public void setRetryPolicy( RetryPolicy retry ) {
+		this.retry = retry == null ? RetryPolicy.NONE : retry;
+	}
+
+	public UpdateListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Set the listener that receives the bytes written and skipped while
+	 * staging.
+	 *
+	 * @param listener The update listener
+	 */
+	public void setListener( UpdateListener listener ) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Get the measurements of the last update. The bytes and files are those
+	 * of the final archive entries, whether they were written or found
+	 * unchanged.
+	 */
+	RunMetrics getMetrics() {
+		return new RunMetrics( System.currentTimeMillis(), target.getAbsoluteFile(), stageTime, commitTime, bytes, files );
+	}
+
+	/**
+	 * Get the total size of the files the update archives provide. The
+	 * archives are read once and kept for the update.
+	 */
+	@Override
+	public long getSize() throws IOException {
+		if( size < 0 ) load();
+		return size;
+	}
+
+	/**
+	 * Read and validate the central directories and manifests of the archives
+	 * and read the archive content ahead so it is cached when the task executes.
+	 * This only reads the archives so it can run while another task executes.
+	 * The content is not read ahead when reads are throttled, or past the
+	 * content the other tasks already read ahead.
+	 */
+	@Override
+	public void prepare() throws IOException {
+		load();
+		releasePrefetch();
+		if( !throttle.isLimited() ) {
+			for( File source : sources ) {
+				prefetch( source );
+			}
+		}
+	}
+
+	/**
+	 * Return the read ahead allowance of the task to the other tasks.
+	 */
+	void releasePrefetch() {
+		prefetchBudget.addAndGet( prefetched.getAndSet( 0 ) );
+	}
+
+	static long getPrefetchBudget() {
+		return prefetchBudget.get();
+	}
+
+	private synchronized UpdateArchives load() throws IOException {
+		if( prepared == null ) {
+			UpdateArchives archives = UpdateArchives.read( sources );
+			size = archives.getSize();
+			prepared = archives;
+		}
+		return prepared;
+	}
+
+	private void prefetch( File source ) throws IOException {
+		BufferPool pool = BufferPool.get();
+		try( FileChannel channel = FileChannel.open( source.toPath(), StandardOpenOption.READ ) ) {
+			long limit = reservePrefetch( channel.size() );
+			prefetched.addAndGet( limit );
+			long position = 0;
+			while( position < limit ) {
+				int count = channel.read( pool.getInput(), position );
+				if( count < 0 ) break;
+				position += count;
+			}
+		}
+	}
+
+	private static long reservePrefetch( long bytes ) {
+		while( true ) {
+			long available = prefetchBudget.get();
+			long reserved = Math.min( bytes, available );
+			if( prefetchBudget.compareAndSet( available, available - reserved ) ) return reserved;
+		}
+	}
+
+	/**
+	 * Set a hook that is called at set points while staging and committing.
+	 * This is used by tests to inject failures.
+	 */
+	void setFault( UpdateFault fault ) {
+		this.fault = fault;
+	}
+
 	public void execute() throws Throwable {
-		if( !source.exists() ) throw new IllegalArgumentException( "Source parameter not found: " + source );
+		try( TargetLock lock = lock() ) {
+			begin();
+
+			if( swap ) {
+				executeSwap();
+				return;
+			}
+
+			stageUpdate();
+			commitUpdate();
+			finishUpdate();
+		} finally {
+			releasePrefetch();
+		}
+	}
+
+	/**
+	 * Wait for the lock on the target folder. The lock is held from the start
+	 * of staging until the update is committed or reverted so updates of the
+	 * same target from different processes do not mix their staged files.
+	 */
+	TargetLock lock() throws IOException {
+		return TargetLock.acquire( target, lockTimeout );
+	}
+
+	/**
+	 * Set the task to stage the files written by another task updating other
+	 * targets from the same archives. The files are linked, or copied when
+	 * they are on another file system, instead of extracted again. The origin
+	 * task must be staged first and committed after this task is staged.
+	 *
+	 * @param origin The task to stage the files from
+	 */
+	void setOrigin( FileUpdateTask origin ) {
+		this.origin = origin;
+		if( origin.staged == null ) origin.staged = new HashMap<>();
+	}
+
+	/**
+	 * Check the source and target and finish a deferred cleanup of the target.
+	 */
+	void begin() throws IOException {
+		for( File source : sources ) {
+			if( !source.exists() ) throw new IllegalArgumentException( "Source parameter not found: " + source );
+		}
 		if( !target.exists() ) throw new IllegalArgumentException( "Target parameter not found: " + target );
 		if( !target.isDirectory() ) throw new IOException( "Target must be a folder: " + target );
 
-		Log.write( Log.TRACE, "Staging: " + target );
+		// Backups left by a previous update would be mixed up with this update.
+		CleanupJournal journal = CleanupJournal.of( target );
+		if( journal.exists() ) journal.clean( throttle );
+
+		index = InstallIndex.load( target );
+		retries = 0;
+		retryTime = 0;
+		stageTime = 0;
+		commitTime = 0;
+		bytes = 0;
+		files = 0;
+	}
+
+	/**
+	 * Stage the update in the target folder. A failure reverts the staged
+	 * files before it is thrown.
+	 */
+	void stageUpdate() throws Throwable {
+		Log.write( Log.TRACE, "Staging: ", target );
+		firePhase( UpdatePhase.STAGE );
+
+		committed = new ArrayList<>();
+		backups = new ArrayList<>();
+		folders = new ArrayList<>();
 
+		long time = System.currentTimeMillis();
 		try {
-			stage( source, target );
+			stage( target );
+			stageTime = System.currentTimeMillis() - time;
 		} catch( ZipException exception ) {
-			throw new IOException( "Source not a valid zip file: " + source );
+			revert( target );
+			throw new IOException( "Source not a valid zip file: " + archive );
 		} catch( Throwable throwable ) {
 			Log.write( Log.WARN, throwable.getMessage() );
-			Log.write( Log.WARN, "Reverting: " + target );
-			revert( target, target );
+			revert( target );
 			throw throwable;
 		}
+	}
 
-		Log.write( Log.TRACE, "Committing: " + target );
-		commit( target, target );
+	/**
+	 * Commit the staged update. A failure reverts the update before it is
+	 * thrown.
+	 */
+	void commitUpdate() throws Throwable {
+		Log.write( Log.TRACE, "Committing: ", target );
+		firePhase( UpdatePhase.COMMIT );
+		long time = System.currentTimeMillis();
+		try {
+			commit( target, target );
+			commitTime = System.currentTimeMillis() - time;
+		} catch( Throwable throwable ) {
+			Log.write( Log.WARN, throwable.getMessage() );
+			revert( target );
+			throw throwable;
+		}
+	}
+
+	/**
+	 * Revert a staged or committed update because the update of another
+	 * target failed.
+	 */
+	void revertUpdate() {
+		revert( target );
+	}
+
+	/**
+	 * Remove or defer the backups of a committed update and save the index.
+	 */
+	void finishUpdate() {
+		if( !deferCleanup || !deferBackups( backups ) ) {
+			removeBackups( target );
+			removeEmptyFolders( target.toPath() );
+		}
+		forgetRemovals();
+		saveIndex();
+
+		archives = null;
+		staged = null;
 
 		//source.renameTo( new File( source.getAbsolutePath() + ".old" ) );
 
-		Log.write( "Successful update: " + source );
+		logRetries();
+		Log.write( "Successful update: " + getSourceNames() );
 	}
 
 	@Override
@@ -64,89 +505,734 @@ public class FileUpdateTask implements UpdateTask {
 		return "Update " + target + " ...";
 	}
 
-	private void stage( File source, File target ) throws IOException {
-		Log.write( Log.DEBUG, "Staging: " + source.getName() + " to " + target + "..." );
+	private void executeSwap() throws Throwable {
+		File stage = getSibling( target, ADD_SUFFIX );
+		File backup = getSibling( target, DEL_SUFFIX );
 
-		ZipFile zip = new ZipFile( source );
+		Log.write( Log.TRACE, "Staging: ", stage );
+		firePhase( UpdatePhase.STAGE );
 
+		long time = System.currentTimeMillis();
 		try {
-			Enumeration<? extends ZipEntry> entries = zip.entries();
-			while( entries.hasMoreElements() ) {
-				ZipEntry entry = entries.nextElement();
-				if( !stage( zip.getInputStream( entry ), target, entry.getName() ) )
-					throw new RuntimeException( "Could not stage: " + new File( target, entry.getName() ) );
+			stageSwap( target, stage );
+			stageTime = System.currentTimeMillis() - time;
+		} catch( ZipException exception ) {
+			firePhase( UpdatePhase.REVERT );
+			FileUtil.delete( stage );
+			throw new IOException( "Source not a valid zip file: " + archive );
+		} catch( Throwable throwable ) {
+			Log.write( Log.WARN, throwable.getMessage() );
+			Log.write( Log.WARN, "Reverting: " + stage );
+			firePhase( UpdatePhase.REVERT );
+			FileUtil.delete( stage );
+			throw throwable;
+		}
+
+		Log.write( Log.TRACE, "Swapping: ", target );
+		firePhase( UpdatePhase.COMMIT );
+		time = System.currentTimeMillis();
+		commitSwap( target, stage, backup );
+		commitTime = System.currentTimeMillis() - time;
+		indexSwap();
+		forgetRemovals();
+		saveIndex();
+		archives = null;
+
+		logRetries();
+		Log.write( "Successful update: " + getSourceNames() );
+	}
+
+	private void stageSwap( File target, File stage ) throws IOException {
+		// Remove a stage folder left behind by an interrupted update.
+		if( stage.exists() ) FileUtil.delete( stage );
+		if( !stage.mkdirs() ) throw new IOException( "Could not create folder: " + stage );
+
+		stage( stage );
+
+		// Link the files not replaced or removed by the archive into the new folder.
+		Path from = target.toPath();
+		Path to = stage.toPath();
+		Set<String> removed = new HashSet<>( removals );
+		Files.walkFileTree( from, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory( Path folder, BasicFileAttributes attributes ) throws IOException {
+				Files.createDirectories( to.resolve( from.relativize( folder ) ) );
+				return FileVisitResult.CONTINUE;
 			}
-		} finally {
-			if( zip != null ) zip.close();
+
+			@Override
+			public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) throws IOException {
+				Path link = to.resolve( from.relativize( file ) );
+				if( Files.exists( link, LinkOption.NOFOLLOW_LINKS ) ) return FileVisitResult.CONTINUE;
+				if( !removed.isEmpty() && removed.contains( from.relativize( file ).toString().replace( File.separatorChar, '/' ) ) ) return FileVisitResult.CONTINUE;
+
+				throttle.acquireWrite( IoThrottle.METADATA_COST );
+				if( attributes.isSymbolicLink() ) {
+					Files.createSymbolicLink( link, Files.readSymbolicLink( file ) );
+				} else {
+					try {
+						Files.createLink( link, file );
+					} catch( IOException | UnsupportedOperationException exception ) {
+						throttle.acquireRead( attributes.size() );
+						throttle.acquireWrite( attributes.size() );
+						Files.copy( file, link, StandardCopyOption.COPY_ATTRIBUTES );
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+		} );
+
+		removeEmptyFolders( to );
+	}
+
+	private void commitSwap( File target, File stage, File backup ) throws IOException {
+		// Remove a backup folder left behind by an interrupted cleanup.
+		if( backup.exists() ) FileUtil.delete( backup );
+
+		retry( "rename", target, () -> Files.move( target.toPath(), backup.toPath(), StandardCopyOption.ATOMIC_MOVE ) );
+		try {
+			retry( "rename", stage, () -> Files.move( stage.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE ) );
+		} catch( IOException exception ) {
+			Log.write( Log.WARN, "Reverting: " + target );
+			firePhase( UpdatePhase.REVERT );
+			retry( "rename", backup, () -> Files.move( backup.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE ) );
+			FileUtil.delete( stage );
+			throw exception;
 		}
+		Log.write( Log.TRACE, "Swapped: ", target );
 
-		Log.write( Log.TRACE, "Staged: " + source.getName() + " to " + target );
+		if( deferCleanup && deferBackups( List.of( backup ) ) ) return;
+		FileUtil.delete( backup );
+		if( backup.exists() ) Log.write( Log.WARN, "Could not remove: " + backup );
 	}
 
-	private boolean stage( InputStream input, File target, String entry ) throws IOException {
-		File file = new File( target, entry );
-		boolean folder = entry.endsWith( "/" );
+	/**
+	 * Record the backups in the cleanup journal.
+	 *
+	 * @return True if the backups were recorded or false if they have to be
+	 * removed now
+	 */
+	private boolean deferBackups( List<File> backups ) {
+		if( backups.isEmpty() ) return true;
+		try {
+			CleanupJournal.of( target ).record( backups );
+			return true;
+		} catch( IOException exception ) {
+			Log.write( Log.WARN, "Could not defer cleanup: " + exception.getMessage() );
+			return false;
+		}
+	}
 
-		if( folder ) {
-			if( !file.exists() && !file.mkdirs() ) throw new IOException( "Could not create folder: " + file );
-		} else {
-			if( file.exists() ) {
-				File delFile = new File( file.getAbsolutePath() + DEL_SUFFIX );
-				if( !file.renameTo( delFile ) ) throw new IOException( "Could not rename file: " + file );
+	/**
+	 * Remove the backups recorded by a deferred cleanup.
+	 */
+	@Override
+	public void cleanup() throws IOException {
+		CleanupJournal journal = CleanupJournal.of( target );
+		if( !journal.exists() ) return;
+		long start = System.currentTimeMillis();
+		int count;
+		try( TargetLock lock = lock() ) {
+			count = journal.clean( throttle );
+		}
+		Log.write( "Cleaned up: " + target + " (" + count + " backups, " + (System.currentTimeMillis() - start) + "ms)" );
+	}
+
+	/**
+	 * Add the files written by a swap to the install index. Files linked from
+	 * the previous folder keep their index entries.
+	 */
+	private void indexSwap() {
+		Path root = target.toPath();
+		try {
+			for( int index = 0; index < archives.size(); index++ ) {
+				for( ZipDirectory.Entry entry : archives.getDirectory( index ).getEntries() ) {
+					UpdateManifest.Entry expected = archives.getExpected( index, entry.getName() );
+					if( entry.isDirectory() || expected == null || !archives.isFinal( index, entry ) ) continue;
+					this.index.put( entry.getName(), UpdateArchives.resolve( root, entry.getName() ), expected.getDigest() );
+				}
 			}
-			File addFile = new File( file.getAbsolutePath() + ADD_SUFFIX );
-			addFile.getParentFile().mkdirs();
-			FileOutputStream output = null;
+		} catch( IOException exception ) {
+			Log.write( Log.WARN, "Could not update install index: " + exception.getMessage() );
+			this.index = null;
+		}
+	}
+
+	/**
+	 * Save the install index. The index is only a cache so a failure does not
+	 * fail the update.
+	 */
+	private void saveIndex() {
+		if( index == null ) return;
+		try {
+			index.save();
+		} catch( IOException exception ) {
+			Log.write( Log.WARN, "Could not save install index: " + index.getFile() );
+		}
+		index = null;
+	}
+
+	/**
+	 * Run a file operation with the retry policy, counting the retries.
+	 */
+	private <T> T retry( String action, Object file, RetryPolicy.Operation<T> operation ) throws IOException {
+		return retry.run( operation, action, file, this::recordRetry );
+	}
+
+	/**
+	 * Run a file operation of a cleanup or revert with the retry policy. A
+	 * failure is logged and the cleanup or revert goes on.
+	 */
+	private void retryQuietly( String action, Object file, RetryPolicy.Operation<?> operation ) {
+		try {
+			retry( action, file, operation );
+		} catch( IOException exception ) {
+			Log.write( Log.WARN, "Could not ", action, ": ", file, " ", exception.getMessage() );
+		}
+	}
+
+	private void recordRetry( long wait ) {
+		retries++;
+		retryTime += wait;
+	}
+
+	private void logRetries() {
+		if( retries > 0 ) Log.write( Log.INFO, "Retried ", retries, " busy file operations: ", target, " (", retryTime, "ms waited)" );
+	}
+
+	private void firePhase( UpdatePhase phase ) {
+		if( listener != null ) listener.phase( this, phase );
+	}
+
+	private String getSourceNames() {
+		StringBuilder builder = new StringBuilder();
+		for( File source : sources ) {
+			if( builder.length() > 0 ) builder.append( ", " );
+			builder.append( source );
+		}
+		return builder.toString();
+	}
+
+	private File getSibling( File file, String suffix ) {
+		return new File( file.getAbsoluteFile().getParentFile(), file.getName() + suffix );
+	}
+
+	private void stage( File target ) throws IOException {
+		archives = origin == null ? prepared : origin.archives;
+		prepared = null;
+		if( archives == null ) {
+			archives = new UpdateArchives();
+			for( File source : sources ) {
+				archive = source;
+				archives.add( source );
+			}
+		}
+
+		BufferPool pool = BufferPool.get();
+		Path root = getRoot( target ).toPath();
+		Path stage = target.toPath();
+		removals = archives.getRemovals( root, prune );
+		posix = Files.getFileStore( stage ).supportsFileAttributeView( PosixFileAttributeView.class );
+		lastFolder = null;
+
+		// Stage each archive in turn, skipping the entries a later archive replaces.
+		for( int index = 0; index < archives.size(); index++ ) {
+			archive = archives.getSource( index );
+			Log.write( Log.DEBUG, "Staging: ", archive.getName(), " to ", target, "..." );
+
+			try( FileChannel channel = FileChannel.open( archive.toPath(), StandardOpenOption.READ ) ) {
+				List<ZipDirectory.Entry> entries = archives.getDirectory( index ).getEntries();
+				if( sequential ) entries = schedule( entries );
+				for( ZipDirectory.Entry entry : entries ) {
+					if( !archives.isFinal( index, entry ) ) continue;
+					String name = entry.getName();
+					Path file = UpdateArchives.resolve( stage, name );
+					Path installed = swap ? UpdateArchives.resolve( root, name ) : file;
+					if( !entry.isDirectory() ) files++;
+					bytes += entry.getSize();
+
+					UpdateManifest.Entry expected = archives.getExpected( index, name );
+					if( expected != null && isUnchanged( entry, installed, expected, pool ) ) {
+						if( UpdateLog.isActive( Log.DEBUG ) ) Log.write( Log.DEBUG, "Unchanged: ", name );
+						if( listener != null ) listener.progress( this, entry.getSize() );
+						continue;
+					}
+
+					stage( channel, file, entry, expected, pool );
+					if( fault != null ) fault.check( UpdatePhase.STAGE, name );
+				}
+			}
+
+			Log.write( Log.TRACE, "Staged: ", archive.getName(), " to ", target );
+		}
+
+		if( !swap ) stageRemovals( root, pool );
+	}
+
+	/**
+	 * Order entries for sequential I/O. The entries are sorted by the offset of
+	 * their data in the archive and then grouped by folder, the folders in the
+	 * order of their first entry, so the archive is read forward and the files
+	 * of a folder are written together.
+	 *
+	 * @param entries The entries in central directory order
+	 * @return The entries in the order to stage them
+	 */
+	static List<ZipDirectory.Entry> schedule( List<ZipDirectory.Entry> entries ) {
+		List<ZipDirectory.Entry> sorted = new ArrayList<>( entries );
+		sorted.sort( Comparator.comparingLong( ZipDirectory.Entry::getLocalHeaderOffset ) );
+
+		Map<String, List<ZipDirectory.Entry>> folders = new LinkedHashMap<>();
+		for( ZipDirectory.Entry entry : sorted ) {
+			String name = entry.getName();
+			String folder = name.substring( 0, name.lastIndexOf( '/', name.length() - 2 ) + 1 );
+			folders.computeIfAbsent( folder, key -> new ArrayList<>() ).add( entry );
+		}
+
+		List<ZipDirectory.Entry> result = new ArrayList<>( entries.size() );
+		for( List<ZipDirectory.Entry> folder : folders.values() ) {
+			result.addAll( folder );
+		}
+		return result;
+	}
+
+	/**
+	 * List the files of a folder for a commit or revert. For sequential I/O
+	 * the files come first, by name, and then the sub folders, so the renames
+	 * of one folder are done together.
+	 */
+	private File[] listFiles( File folder ) {
+		File[] files = folder.listFiles();
+		if( !sequential || files == null ) return files;
+
+		List<File> result = new ArrayList<>( files.length );
+		List<File> folders = new ArrayList<>();
+		for( File file : files ) {
+			(file.isDirectory() ? folders : result).add( file );
+		}
+		result.sort( Comparator.comparing( File::getName ) );
+		folders.sort( Comparator.comparing( File::getName ) );
+		result.addAll( folders );
+		return result.toArray( new File[ 0 ] );
+	}
+
+	/**
+	 * Move the files to remove to backups. They are removed with the other
+	 * backups after the commit, or restored by a revert.
+	 */
+	private void stageRemovals( Path root, BufferPool pool ) throws IOException {
+		for( String name : removals ) {
+			Path file = UpdateArchives.resolve( root, name );
+			throttle.acquireWrite( IoThrottle.METADATA_COST );
+			Path backup = pool.getPath( file, DEL_SUFFIX );
+			retry( "backup", file, () -> Files.move( file, backup, StandardCopyOption.REPLACE_EXISTING ) );
+			if( UpdateLog.isActive( Log.DEBUG ) ) Log.write( Log.DEBUG, "Removing: ", name );
+			if( fault != null ) fault.check( UpdatePhase.STAGE, name );
+		}
+		if( !removals.isEmpty() ) Log.write( Log.TRACE, "Staged removal of ", removals.size(), " files from ", target );
+	}
+
+	/**
+	 * Remove the folders left empty by the removed files. Folders the archives
+	 * list are kept.
+	 */
+	private void removeEmptyFolders( Path root ) {
+		Set<String> names = new TreeSet<>( Comparator.reverseOrder() );
+		for( String name : removals ) {
+			int index = name.lastIndexOf( '/' );
+			while( index > 0 ) {
+				name = name.substring( 0, index );
+				names.add( name );
+				index = name.lastIndexOf( '/' );
+			}
+		}
+
+		// The names are in reverse order so child folders are removed first.
+		for( String name : names ) {
+			if( archives.contains( name + "/" ) ) continue;
 			try {
-				output = new FileOutputStream( addFile );
-				IoUtil.copy( input, output );
-			} finally {
-				if( output != null ) output.close();
+				Files.delete( root.resolve( name ) );
+				if( UpdateLog.isActive( Log.DEBUG ) ) Log.write( Log.DEBUG, "Remove folder: ", name );
+			} catch( IOException exception ) {
+				// Intentionally ignore exception, the folder is not empty
 			}
 		}
+	}
 
-		Log.write( Log.DEBUG, "Staging: " + entry );
+	/**
+	 * Remove the removed files from the install index.
+	 */
+	private void forgetRemovals() {
+		if( index == null ) return;
+		for( String name : removals ) {
+			index.remove( name );
+		}
+	}
+
+	/**
+	 * Stage an archive entry.
+	 *
+	 * @param file The resolved path of the entry in the folder being staged
+	 */
+	private void stage( FileChannel archive, Path file, ZipDirectory.Entry entry, UpdateManifest.Entry expected, BufferPool pool ) throws IOException {
+		if( entry.isDirectory() ) {
+			createFolders( file );
+		} else if( swap ) {
+			// The swap stage folder is new so the file is written in place.
+			createFolders( file.getParent() );
+			stageFile( archive, entry, file, expected, pool );
+		} else {
+			if( Files.exists( file, LinkOption.NOFOLLOW_LINKS ) ) {
+				Path backup = pool.getPath( file, DEL_SUFFIX );
+				throttle.acquireWrite( IoThrottle.METADATA_COST );
+				retry( "backup", file, () -> Files.move( file, backup, StandardCopyOption.REPLACE_EXISTING ) );
+			}
+			Path addFile = pool.getPath( file, ADD_SUFFIX );
+			createFolders( file.getParent() );
+			stageFile( archive, entry, addFile, expected, pool );
+		}
 
+		if( UpdateLog.isActive( Log.DEBUG ) ) Log.write( Log.DEBUG, "Staging: ", entry );
+	}
+
+	/**
+	 * Stage a file from the origin task, the content store or the archive.
+	 */
+	private void stageFile( FileChannel archive, ZipDirectory.Entry entry, Path file, UpdateManifest.Entry expected, BufferPool pool ) throws IOException {
+		if( stageFromOrigin( entry, file ) ) {
+			setAttributes( file, entry, expected );
+			return;
+		}
+
+		// A stored file already has the attributes, which all the links share.
+		int mode = getMode( entry, expected );
+		String key = store == null || expected == null ? null : BlobStore.getKey( expected.getDigest(), mode );
+		if( key != null && store.link( key, file, expected.getSize(), throttle ) ) {
+			if( UpdateLog.isActive( Log.DEBUG ) ) Log.write( Log.DEBUG, "Linked: ", entry );
+			if( listener != null ) listener.progress( this, entry.getSize() );
+			return;
+		}
+
+		extract( archive, entry, file, expected, pool );
+		if( staged != null ) staged.put( entry.getName(), file );
+		setAttributes( file, entry, expected );
+
+		// The blob is stored under the digest of its own content.
+		if( store == null ) return;
+		String digest = expected == null ? hash( file, pool ) : expected.getDigest();
+		store.add( BlobStore.getKey( digest, mode ), file, throttle );
+	}
+
+	/**
+	 * Link or copy a file the origin task staged. The origin staged the file
+	 * from the same archive entry, so the file does not have to be extracted
+	 * again.
+	 *
+	 * @return True if the file was staged or false if it has to be extracted
+	 */
+	private boolean stageFromOrigin( ZipDirectory.Entry entry, Path file ) throws IOException {
+		Path source = origin == null ? null : origin.staged.get( entry.getName() );
+		if( source == null ) return false;
+
+		throttle.acquireWrite( IoThrottle.METADATA_COST );
+		Files.deleteIfExists( file );
+		try {
+			Files.createLink( file, source );
+		} catch( IOException | UnsupportedOperationException exception ) {
+			throttle.acquireRead( entry.getSize() );
+			throttle.acquireWrite( entry.getSize() );
+			Files.copy( source, file );
+		}
+		if( listener != null ) listener.progress( this, entry.getSize() );
 		return true;
 	}
 
-	private void commit( File root, File target ) {
-		// Commit staged changes.
+	/**
+	 * Create a folder and any missing parent folders, remembering the created
+	 * folders so a revert can remove them again. Archive entries are usually
+	 * grouped by folder so the last folder is remembered to save a check for
+	 * every entry.
+	 */
+	private void createFolders( Path folder ) throws IOException {
+		if( folder.equals( lastFolder ) ) return;
+		if( !Files.isDirectory( folder ) ) {
+			createFolders( folder.getParent() );
+			try {
+				Files.createDirectory( folder );
+			} catch( FileAlreadyExistsException exception ) {
+				if( !Files.isDirectory( folder ) ) throw exception;
+			}
+			if( folders != null ) folders.add( folder );
+		}
+		lastFolder = folder;
+	}
+
+	/**
+	 * Extract an archive entry to a file using the pooled buffers and inflater.
+	 * Large stored entries are copied in parallel chunks unless the I/O is
+	 * sequential. The entry CRC is always checked and the content is also
+	 * verified against the manifest when there is one.
+	 */
+	private void extract( FileChannel archive, ZipDirectory.Entry entry, Path file, UpdateManifest.Entry expected, BufferPool pool ) throws IOException {
+		if( (entry.getFlags() & 0x01) != 0 ) throw new ZipException( "Encrypted entries are not supported: " + entry );
+
+		long position = ZipDirectory.getDataOffset( archive, entry, pool.getInput() );
+		long remaining = entry.getCompressedSize();
+		long size = 0;
+		CRC32 crc = pool.getCrc();
+		long checksum = -1;
+		MessageDigest digest = expected == null ? null : pool.getDigest();
+
+		try( FileChannel output = retry( "open", file, () -> FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) ) {
+			if( entry.getMethod() == ZipEntry.STORED && remaining >= ParallelCopy.THRESHOLD && !sequential ) {
+				checksum = ParallelCopy.copy( archive, position, remaining, output, throttle, digest, count -> {
+					if( listener != null ) listener.progress( this, count );
+				} );
+				size = remaining;
+			} else if( entry.getMethod() == ZipEntry.STORED ) {
+				while( remaining > 0 ) {
+					ByteBuffer buffer = read( archive, position, remaining, pool.getInput(), entry );
+					position += buffer.remaining();
+					remaining -= buffer.remaining();
+					size += write( output, buffer, crc, digest );
+				}
+			} else if( entry.getMethod() == ZipEntry.DEFLATED ) {
+				Inflater inflater = pool.getInflater();
+				ByteBuffer buffer = pool.getOutput();
+				while( !inflater.finished() ) {
+					if( inflater.needsInput() ) {
+						if( remaining <= 0 ) throw new ZipException( "Unexpected end of entry: " + entry );
+						ByteBuffer input = read( archive, position, remaining, pool.getInput(), entry );
+						position += input.remaining();
+						remaining -= input.remaining();
+						inflater.setInput( input );
+					}
+					buffer.clear();
+					try {
+						inflater.inflate( buffer );
+					} catch( DataFormatException exception ) {
+						throw new ZipException( "Invalid entry data: " + entry );
+					}
+					if( inflater.needsDictionary() ) throw new ZipException( "Invalid entry data: " + entry );
+					buffer.flip();
+					size += write( output, buffer, crc, digest );
+				}
+			} else {
+				throw new ZipException( "Unsupported compression method: " + entry );
+			}
+		}
+
+		if( checksum < 0 ) checksum = crc.getValue();
+		if( size != entry.getSize() || checksum != entry.getCrc() ) throw new ZipException( "Invalid entry data: " + entry );
+
+		// Verify the content against the manifest while it is still staged.
+		if( expected != null ) {
+			if( size != expected.getSize() ) throw new IOException( "File size does not match manifest: " + expected.getPath() );
+			if( !UpdateManifest.toHex( digest.digest() ).equals( expected.getDigest() ) )
+				throw new IOException( "File digest does not match manifest: " + expected.getPath() );
+		}
+	}
+
+	private ByteBuffer read( FileChannel archive, long position, long remaining, ByteBuffer buffer, ZipDirectory.Entry entry ) throws IOException {
+		if( remaining < buffer.capacity() ) buffer.limit( (int)remaining );
+		int count = archive.read( buffer, position );
+		if( count < 0 ) throw new EOFException( "Unexpected end of archive: " + entry );
+		throttle.acquireRead( count );
+		buffer.flip();
+		return buffer;
+	}
+
+	private int write( FileChannel output, ByteBuffer buffer, CRC32 crc, MessageDigest digest ) throws IOException {
+		int start = buffer.position();
+		int count = buffer.remaining();
+		crc.update( buffer );
+		if( digest != null ) {
+			buffer.position( start );
+			digest.update( buffer );
+		}
+		buffer.position( start );
+
+		throttle.acquireWrite( count );
+		long time = System.nanoTime();
+		while( buffer.hasRemaining() ) {
+			output.write( buffer );
+		}
+		throttle.recordWrite( System.nanoTime() - time, count );
+		if( listener != null ) listener.progress( this, count );
+		return count;
+	}
+
+	/**
+	 * Apply the unix mode and modification time from the archive to a staged
+	 * file. The mode in the manifest takes precedence over the mode in the
+	 * archive entry. The attributes survive the rename at commit so the files
+	 * do not need a second pass after the update.
+	 */
+	private void setAttributes( Path file, ZipDirectory.Entry entry, UpdateManifest.Entry expected ) throws IOException {
+		int mode = getMode( entry, expected );
+		if( mode >= 0 && posix ) Files.setPosixFilePermissions( file, getPermissions( mode ) );
+
+		long time = entry.getLastModifiedTime();
+		if( time >= 0 ) Files.setLastModifiedTime( file, FileTime.fromMillis( time ) );
+	}
+
+	private int getMode( ZipDirectory.Entry entry, UpdateManifest.Entry expected ) {
+		int mode = expected == null ? -1 : expected.getMode();
+		return mode < 0 ? entry.getUnixMode() : mode;
+	}
+
+	private static Set<PosixFilePermission> getPermissions( int mode ) {
+		Set<PosixFilePermission> permissions = EnumSet.noneOf( PosixFilePermission.class );
+		PosixFilePermission[] values = PosixFilePermission.values();
+		for( int index = 0; index < values.length; index++ ) {
+			if( (mode & (0400 >> index)) != 0 ) permissions.add( values[ index ] );
+		}
+		return permissions;
+	}
+
+	/**
+	 * Check if an installed file already has the expected content. The install
+	 * index is checked first and the file is only read when its size or
+	 * modification time changed since it was indexed.
+	 */
+	private boolean isUnchanged( ZipDirectory.Entry entry, Path file, UpdateManifest.Entry expected, BufferPool pool ) throws IOException {
+		String name = entry.getName();
+		String digest = index == null ? null : index.getDigest( name, file );
+		if( digest == null && Files.isRegularFile( file ) && Files.size( file ) == expected.getSize() ) {
+			digest = hash( file, pool );
+			if( index != null ) index.put( name, file, digest );
+		}
+		return expected.getDigest().equals( digest );
+	}
+
+	private String hash( File file ) {
+		try {
+			return hash( file.toPath(), BufferPool.get() );
+		} catch( IOException exception ) {
+			throw new RuntimeException( "Could not hash file: " + file, exception );
+		}
+	}
+
+	private String hash( Path file, BufferPool pool ) throws IOException {
+		return pool.digest( file, throttle );
+	}
+
+	/**
+	 * Charge a rename or delete against the write budget. An interrupt does not
+	 * stop the operation since a revert must always finish.
+	 */
+	private void throttleMetadata() {
+		try {
+			throttle.acquireWrite( IoThrottle.METADATA_COST );
+		} catch( InterruptedIOException exception ) {
+			// Intentionally ignore exception
+		}
+	}
+
+	/**
+	 * Get the installed folder for a staging folder. In swap mode the files are
+	 * staged in a new folder but compared with the installed ones.
+	 */
+	private File getRoot( File stage ) {
+		return swap ? this.target : stage;
+	}
+
+	private void commit( File root, File target ) throws IOException {
+		// Commit staged changes. The backups are kept until every file is
+		// committed so a failed commit can still be reverted.
 		if( target.isDirectory() ) {
-			File[] files = target.listFiles();
+			File[] files = listFiles( target );
 			for( File file : files ) {
 				commit( root, file );
 			}
 		} else {
 			if( target.getName().endsWith( ADD_SUFFIX ) ) {
-				String sourceHash = HashUtil.hash( target );
 				File file = FileUtil.removeExtension( target );
-				target.renameTo( file );
-				String targetHash = HashUtil.hash( file );
-				if( !targetHash.equals( sourceHash ) )
-					throw new RuntimeException( "Hash code mismatch commiting file: " + file );
-				Log.write( Log.TRACE, "Commit: " + relativize( root, file ) );
+				String name = getEntryName( root, file );
+				UpdateManifest.Entry expected = archives.isVerified() ? archives.getExpected( name ) : null;
+				String digest;
+				throttleMetadata();
+				if( expected != null ) {
+					// The content was verified against the manifest while staging.
+					commitFile( target, file );
+					committed.add( file );
+					digest = expected.getDigest();
+				} else {
+					String sourceHash = hash( target );
+					commitFile( target, file );
+					committed.add( file );
+					String targetHash = hash( file );
+					if( !targetHash.equals( sourceHash ) )
+						throw new RuntimeException( "Hash code mismatch commiting file: " + file );
+					digest = targetHash;
+				}
+				if( index != null ) index.put( name, file.toPath(), digest );
+				UpdateLog.write( Log.TRACE, () -> "Commit: " + relativize( root, file ) );
+				if( fault != null ) fault.check( UpdatePhase.COMMIT, name );
 			} else if( target.getName().endsWith( DEL_SUFFIX ) ) {
-				File file = FileUtil.removeExtension( target );
-				target.delete();
-				if( !file.exists() )
-					Log.write( Log.TRACE, "Remove: " + relativize( root, FileUtil.removeExtension( target ) ) );
+				backups.add( target );
 			}
 		}
 	}
 
+	private void commitFile( File staged, File file ) throws IOException {
+		try {
+			retry( "commit", file, () -> Files.move( staged.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING ) );
+		} catch( IOException exception ) {
+			throw new IOException( "Could not commit file: " + file, exception );
+		}
+	}
+
+	private void removeBackups( File root ) {
+		for( File backup : backups ) {
+			File file = FileUtil.removeExtension( backup );
+			throttleMetadata();
+			retryQuietly( "remove", backup, () -> Files.deleteIfExists( backup.toPath() ) );
+			if( UpdateLog.isActive( Log.TRACE ) && !file.exists() ) Log.write( Log.TRACE, "Remove: ", relativize( root, file ) );
+		}
+	}
+
+	private void revert( File target ) {
+		Log.write( Log.WARN, "Reverting: " + target );
+		firePhase( UpdatePhase.REVERT );
+		long start = System.currentTimeMillis();
+
+		// Move committed files back to staged files so they are removed.
+		for( int index = committed.size() - 1; index >= 0; index-- ) {
+			File file = committed.get( index );
+			throttleMetadata();
+			retryQuietly( "revert", file, () -> Files.move( file.toPath(), new File( file.getAbsolutePath() + ADD_SUFFIX ).toPath(), StandardCopyOption.REPLACE_EXISTING ) );
+		}
+		committed.clear();
+
+		revert( target, target );
+
+		// Remove the folders created while staging.
+		for( int index = folders.size() - 1; index >= 0; index-- ) {
+			folders.get( index ).toFile().delete();
+		}
+		folders.clear();
+
+		logRetries();
+		Log.write( Log.WARN, "Reverted: " + target + " (" + (System.currentTimeMillis() - start) + "ms)" );
+	}
+
 	private void revert( File root, File target ) {
 		// Revert staged changes.
 		if( target.isDirectory() ) {
-			File[] files = target.listFiles();
+			File[] files = listFiles( target );
 			for( File file : files ) {
 				revert( root, file );
 			}
 		} else {
 			if( target.getName().endsWith( DEL_SUFFIX ) ) {
-				target.renameTo( FileUtil.removeExtension( target ) );
+				throttleMetadata();
+				retryQuietly( "revert", target, () -> Files.move( target.toPath(), FileUtil.removeExtension( target ).toPath(), StandardCopyOption.REPLACE_EXISTING ) );
 			} else if( target.getName().endsWith( ADD_SUFFIX ) ) {
-				target.delete();
+				throttleMetadata();
+				retryQuietly( "remove", target, () -> Files.deleteIfExists( target.toPath() ) );
 			}
 		}
 	}
@@ -155,4 +1241,8 @@ public class FileUpdateTask implements UpdateTask {
 		return root.toURI().relativize( file.toURI() ).toString();
 	}
 
+	private String getEntryName( File root, File file ) {
+		return root.toPath().relativize( file.toPath() ).toString().replace( File.separatorChar, '/' );
+	}
+
 }
@@ -0,0 +1,206 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.TextUtil;
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The size, modification time and digest of the files installed in a target
+ * folder, remembered between updates. A file with the same size, modification
+ * time and file key as its index entry is taken to have the digest in the
+ * index, so unchanged files are found with a metadata scan instead of reading
+ * every file.
+ * <p>
+ * The index is kept next to the target folder and is only a cache. A missing
+ * or unreadable index is treated as empty and the files are read again. The
+ * index is replaced with a rename so an interrupted save leaves the previous
+ * index in place.
+ */
+class InstallIndex {
+
+	static final String SUFFIX = ".index";
+
+	private static final String HEADER = "#updater-index 2 ";
+
+	/**
+	 * Files modified this close to the time the index was saved may have been
+	 * modified again within the resolution of the file time. Their index
+	 * entries are not trusted.
+	 */
+	private static final long RACY_MILLIS = 2000;
+
+	private File file;
+
+	private long saved;
+
+	private Map<String, Entry> entries;
+
+	private boolean modified;
+
+	private InstallIndex( File file ) {
+		this.file = file;
+		this.saved = Long.MIN_VALUE;
+		this.entries = new HashMap<>();
+	}
+
+	/**
+	 * Get the index file for a target folder.
+	 */
+	public static File getFile( File target ) {
+		File folder = target.getAbsoluteFile();
+		return new File( folder.getParentFile(), folder.getName() + SUFFIX );
+	}
+
+	/**
+	 * Load the index for a target folder. If there is no index, or it cannot
+	 * be read, an empty index is returned.
+	 *
+	 * @param target The target folder
+	 * @return The install index
+	 */
+	public static InstallIndex load( File target ) {
+		InstallIndex index = new InstallIndex( getFile( target ) );
+		if( !index.file.exists() ) return index;
+
+		try( BufferedReader reader = Files.newBufferedReader( index.file.toPath(), TextUtil.DEFAULT_CHARSET ) ) {
+			String header = reader.readLine();
+			if( header == null || !header.startsWith( HEADER ) ) throw new IOException( "Unknown index format" );
+			index.saved = Long.parseLong( header.substring( HEADER.length() ) );
+
+			String line;
+			while( (line = reader.readLine()) != null ) {
+				String[] values = line.split( " ", 5 );
+				if( values.length < 5 ) throw new IOException( "Invalid index line: " + line );
+				index.entries.put( values[ 4 ], new Entry( Long.parseLong( values[ 1 ] ), Long.parseLong( values[ 2 ] ), values[ 3 ], values[ 0 ] ) );
+			}
+		} catch( IOException | RuntimeException exception ) {
+			Log.write( Log.WARN, "Ignoring install index: ", index.file, " ", exception.getMessage() );
+			index.saved = Long.MIN_VALUE;
+			index.entries.clear();
+		}
+
+		return index;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the digest of a file if the file has the size, modification time and
+	 * file key it had when it was indexed.
+	 *
+	 * @param name The entry name of the file relative to the target folder
+	 * @param path The file
+	 * @return The digest or null if the file has to be read
+	 */
+	public String getDigest( String name, Path path ) throws IOException {
+		Entry entry = entries.get( name );
+		if( entry == null ) return null;
+
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes( path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS );
+		} catch( NoSuchFileException exception ) {
+			return null;
+		}
+		if( !attributes.isRegularFile() || attributes.size() != entry.size ) return null;
+
+		long time = attributes.lastModifiedTime().toMillis();
+		if( time != entry.modified || time >= saved - RACY_MILLIS ) return null;
+		if( !getKey( attributes ).equals( entry.key ) ) return null;
+
+		return entry.digest;
+	}
+
+	/**
+	 * Remember the digest of a file with its current size and modification
+	 * time.
+	 *
+	 * @param name The entry name of the file relative to the target folder
+	 * @param path The file
+	 * @param digest The digest of the file content
+	 */
+	public void put( String name, Path path, String digest ) throws IOException {
+		if( name.indexOf( '\n' ) >= 0 || name.indexOf( '\r' ) >= 0 ) return;
+		BasicFileAttributes attributes = Files.readAttributes( path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS );
+		entries.put( name, new Entry( attributes.size(), attributes.lastModifiedTime().toMillis(), getKey( attributes ), digest ) );
+		modified = true;
+	}
+
+	public void remove( String name ) {
+		if( entries.remove( name ) != null ) modified = true;
+	}
+
+	/**
+	 * Save the index if it changed. The index is written to a temporary file
+	 * and renamed over the previous index.
+	 */
+	public void save() throws IOException {
+		if( !modified ) return;
+
+		long now = System.currentTimeMillis();
+		Path path = file.toPath();
+		Path temp = path.resolveSibling( file.getName() + ".tmp" );
+		try( BufferedWriter writer = Files.newBufferedWriter( temp, TextUtil.DEFAULT_CHARSET ) ) {
+			writer.write( HEADER + now );
+			writer.newLine();
+			for( Map.Entry<String, Entry> entry : entries.entrySet() ) {
+				Entry value = entry.getValue();
+				writer.write( value.digest + " " + value.size + " " + value.modified + " " + value.key + " " + entry.getKey() );
+				writer.newLine();
+			}
+		}
+
+		try {
+			Files.move( temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} catch( AtomicMoveNotSupportedException exception ) {
+			Files.move( temp, path, StandardCopyOption.REPLACE_EXISTING );
+		}
+
+		saved = now;
+		modified = false;
+		Log.write( Log.DEBUG, "Saved install index: ", file, " (", entries.size(), " files)" );
+	}
+
+	/**
+	 * Get the file key, the device and inode on unix systems. A file replaced
+	 * by another file gets a new key but a renamed file keeps its key.
+	 */
+	private static String getKey( BasicFileAttributes attributes ) {
+		Object key = attributes.fileKey();
+		return key == null ? "-" : key.toString().replace( ' ', '_' );
+	}
+
+	private static class Entry {
+
+		private long size;
+
+		private long modified;
+
+		private String key;
+
+		private String digest;
+
+		public Entry( long size, long modified, String key, String digest ) {
+			this.size = size;
+			this.modified = modified;
+			this.key = key;
+			this.digest = digest;
+		}
+
+	}
+
+}
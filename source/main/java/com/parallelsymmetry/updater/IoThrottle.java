@@ -0,0 +1,189 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter for the bytes read and written by the update
+ * tasks. Reads and writes have separate budgets in bytes per second. A rate of
+ * zero or less means the budget is not limited.
+ * <p>
+ * In adaptive mode the write budget is reduced when the latency of the writes
+ * climbs above the lowest latency seen so far and is restored gradually when
+ * the latency recovers. This keeps the updater from starving other services
+ * that share the same disk.
+ */
+public class IoThrottle {
+
+	public static final IoThrottle NONE = new IoThrottle( 0, 0 );
+
+	/**
+	 * The number of bytes charged against the write budget for a metadata
+	 * operation like a rename or delete.
+	 */
+	public static final int METADATA_COST = 4096;
+
+	private static final int ADAPT_INTERVAL = 16;
+
+	private static final double BACKOFF_THRESHOLD = 2.0;
+
+	private static final double RECOVER_THRESHOLD = 1.25;
+
+	private static final int MINIMUM_FRACTION = 16;
+
+	private Bucket read;
+
+	private Bucket write;
+
+	private boolean adaptive;
+
+	private long writeCeiling;
+
+	private double latency;
+
+	private double baseline;
+
+	private long samples;
+
+	public IoThrottle( long readRate, long writeRate ) {
+		this.read = new Bucket( readRate );
+		this.write = new Bucket( writeRate );
+		this.writeCeiling = writeRate;
+	}
+
+	public long getReadRate() {
+		return read.getRate();
+	}
+
+	public long getWriteRate() {
+		return write.getRate();
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * Set the throttle to adjust the write budget based on the observed write
+	 * latency. The budget is kept between one sixteenth of the configured write
+	 * rate and the configured write rate, so adaptive mode requires a write
+	 * rate.
+	 *
+	 * @param adaptive True to adjust the write budget
+	 */
+	public void setAdaptive( boolean adaptive ) {
+		if( adaptive && writeCeiling <= 0 ) {
+			Log.write( Log.WARN, "Adaptive I/O throttling requires a write rate" );
+			return;
+		}
+		this.adaptive = adaptive;
+	}
+
+	public boolean isLimited() {
+		return read.getRate() > 0 || write.getRate() > 0;
+	}
+
+	public void acquireRead( long bytes ) throws InterruptedIOException {
+		read.acquire( bytes );
+	}
+
+	public void acquireWrite( long bytes ) throws InterruptedIOException {
+		write.acquire( bytes );
+	}
+
+	/**
+	 * Record the time a write of the given number of bytes took. This is used by
+	 * the adaptive mode and does nothing otherwise.
+	 */
+	public void recordWrite( long nanos, int bytes ) {
+		if( adaptive && bytes > 0 ) adapt( nanos, bytes );
+	}
+
+	/**
+	 * Parse a rate in bytes per second. The value may have a K, M or G suffix
+	 * for kibibytes, mebibytes or gibibytes per second.
+	 */
+	public static long parseRate( String value ) {
+		String text = value.trim().toUpperCase();
+		long scale = 1;
+		if( text.endsWith( "K" ) ) {
+			scale = 1L << 10;
+		} else if( text.endsWith( "M" ) ) {
+			scale = 1L << 20;
+		} else if( text.endsWith( "G" ) ) {
+			scale = 1L << 30;
+		}
+		if( scale > 1 ) text = text.substring( 0, text.length() - 1 );
+		return Long.parseLong( text.trim() ) * scale;
+	}
+
+	private synchronized void adapt( long nanos, int bytes ) {
+		double sample = (double)nanos / bytes;
+		latency = latency == 0 ? sample : latency * 0.9 + sample * 0.1;
+		if( baseline == 0 || latency < baseline ) baseline = latency;
+		if( ++samples % ADAPT_INTERVAL != 0 ) return;
+
+		long rate = write.getRate();
+		if( latency > baseline * BACKOFF_THRESHOLD ) {
+			long minimum = Math.max( 1, writeCeiling / MINIMUM_FRACTION );
+			long next = Math.max( minimum, rate / 2 );
+			if( next != rate ) Log.write( Log.DEBUG, "Write latency climbing, write rate: ", next );
+			write.setRate( next );
+		} else if( latency < baseline * RECOVER_THRESHOLD ) {
+			write.setRate( Math.min( writeCeiling, rate + Math.max( 1, rate / 10 ) ) );
+		}
+	}
+
+	private static class Bucket {
+
+		private long rate;
+
+		private double tokens;
+
+		private long time;
+
+		public Bucket( long rate ) {
+			this.rate = rate;
+			this.tokens = rate;
+			this.time = System.nanoTime();
+		}
+
+		public synchronized long getRate() {
+			return rate;
+		}
+
+		public synchronized void setRate( long rate ) {
+			refill();
+			this.rate = rate;
+			tokens = Math.min( tokens, rate );
+		}
+
+		public void acquire( long bytes ) throws InterruptedIOException {
+			long wait;
+			synchronized( this ) {
+				if( rate <= 0 ) return;
+				refill();
+				tokens -= bytes;
+				// A negative balance is a debt the caller waits off.
+				wait = tokens < 0 ? (long)(-tokens * TimeUnit.SECONDS.toNanos( 1 ) / rate) : 0;
+			}
+			if( wait <= 0 ) return;
+			try {
+				TimeUnit.NANOSECONDS.sleep( wait );
+			} catch( InterruptedException exception ) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "I/O throttle interrupted" );
+			}
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min( rate, tokens + (double)(now - time) * rate / TimeUnit.SECONDS.toNanos( 1 ) );
+			time = now;
+		}
+
+	}
+
+}
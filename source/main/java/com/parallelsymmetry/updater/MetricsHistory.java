@@ -0,0 +1,203 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.TextUtil;
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A rolling history of the update runs of each target folder, kept in the
+ * updater data folder. Each run is compared with the runs of the same target
+ * before it to find updates that are getting slower.
+ * <p>
+ * A run is slow when its throughput is more than a fifth below the mean of
+ * the baseline runs and more than three standard deviations below it, so
+ * the ordinary variation of a target does not flag its runs. A baseline of
+ * fewer than five runs is not compared, nor is a run shorter than a second
+ * since its time is mostly fixed costs.
+ */
+class MetricsHistory {
+
+	static final String FILE_NAME = "update.metrics";
+
+	private static final String LOCK_SUFFIX = ".lock";
+
+	private static final String HEADER = "#updater-metrics 1";
+
+	private static final int MAX_RUNS = 20;
+
+	private static final int BASELINE_RUNS = 10;
+
+	private static final int MIN_BASELINE_RUNS = 5;
+
+	private static final double MIN_SLOWDOWN = 0.2;
+
+	private static final double MIN_DEVIATIONS = 3;
+
+	private static final long MIN_DURATION = 1000;
+
+	private File file;
+
+	private Map<File, List<RunMetrics>> runs;
+
+	private List<RunMetrics> added;
+
+	private MetricsHistory( File file ) {
+		this.file = file;
+		this.runs = new LinkedHashMap<>();
+		this.added = new ArrayList<>();
+	}
+
+	/**
+	 * Load the history in a data folder. A missing or unreadable history is
+	 * treated as empty.
+	 *
+	 * @param folder The data folder
+	 * @return The metrics history
+	 */
+	public static MetricsHistory load( File folder ) {
+		MetricsHistory history = new MetricsHistory( new File( folder, FILE_NAME ) );
+		history.read();
+		return history;
+	}
+
+	private void read() {
+		if( !file.exists() ) return;
+
+		try( BufferedReader reader = Files.newBufferedReader( file.toPath(), TextUtil.DEFAULT_CHARSET ) ) {
+			if( !HEADER.equals( reader.readLine() ) ) throw new IOException( "Unknown metrics format" );
+			String line;
+			while( (line = reader.readLine()) != null ) {
+				if( !line.isEmpty() ) append( RunMetrics.parse( line ) );
+			}
+		} catch( IOException | RuntimeException exception ) {
+			Log.write( Log.WARN, "Ignoring metrics history: ", file, " ", exception.getMessage() );
+			runs.clear();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public Set<File> getTargets() {
+		return Collections.unmodifiableSet( runs.keySet() );
+	}
+
+	/**
+	 * Get the runs of a target, oldest first.
+	 */
+	public List<RunMetrics> getRuns( File target ) {
+		List<RunMetrics> list = runs.get( target );
+		return list == null ? List.of() : Collections.unmodifiableList( list );
+	}
+
+	/**
+	 * Add a run. Only the latest runs of each target are kept.
+	 */
+	public void add( RunMetrics run ) {
+		append( run );
+		added.add( run );
+	}
+
+	private void append( RunMetrics run ) {
+		List<RunMetrics> list = runs.computeIfAbsent( run.getTarget(), key -> new ArrayList<>() );
+		list.add( run );
+		if( list.size() > MAX_RUNS ) list.remove( 0 );
+	}
+
+	/**
+	 * Compare a run with the runs of the same target before it.
+	 *
+	 * @param run The run, which may be in the history already
+	 * @return A description of the slowdown or null if the run is not slow
+	 */
+	public String checkSlowdown( RunMetrics run ) {
+		List<RunMetrics> previous = new ArrayList<>();
+		for( RunMetrics other : getRuns( run.getTarget() ) ) {
+			if( other == run ) break;
+			previous.add( other );
+		}
+		return checkSlowdown( run, previous.subList( Math.max( 0, previous.size() - BASELINE_RUNS ), previous.size() ) );
+	}
+
+	static String checkSlowdown( RunMetrics run, List<RunMetrics> baseline ) {
+		if( baseline.size() < MIN_BASELINE_RUNS || run.getDuration() < MIN_DURATION ) return null;
+
+		double mean = 0;
+		for( RunMetrics other : baseline ) {
+			mean += other.getThroughput();
+		}
+		mean /= baseline.size();
+
+		double variance = 0;
+		for( RunMetrics other : baseline ) {
+			variance += Math.pow( other.getThroughput() - mean, 2 );
+		}
+		double deviation = Math.sqrt( variance / (baseline.size() - 1) );
+
+		double throughput = run.getThroughput();
+		if( throughput >= mean * (1 - MIN_SLOWDOWN) ) return null;
+		if( deviation > 0 && (mean - throughput) / deviation < MIN_DEVIATIONS ) return null;
+
+		return String.format( "%d bytes/s against a baseline of %.0f bytes/s over %d runs (%.0f%% slower)", run.getThroughput(), mean, baseline.size(), 100 * (1 - throughput / mean) );
+	}
+
+	/**
+	 * Save the runs added since the history was loaded. The history is read
+	 * again first so the runs saved by another updater in the meantime are
+	 * kept. The history is written to a temporary file and renamed over the
+	 * previous history, all while holding a lock on a file next to the history
+	 * so two updaters saving at once do not lose each other's runs.
+	 */
+	public void save() throws IOException {
+		if( added.isEmpty() ) return;
+
+		Files.createDirectories( file.getParentFile().toPath() );
+		Path path = file.toPath();
+		// A file lock is held by the process, so the threads of one process take turns first.
+		synchronized( MetricsHistory.class ) {
+			try( FileChannel channel = FileChannel.open( path.resolveSibling( file.getName() + LOCK_SUFFIX ), StandardOpenOption.CREATE, StandardOpenOption.WRITE ); FileLock lock = channel.lock() ) {
+				runs.clear();
+				read();
+				for( RunMetrics run : added ) {
+					append( run );
+				}
+				write( path );
+			}
+		}
+		added.clear();
+	}
+
+	private void write( Path path ) throws IOException {
+		Path temp = Files.createTempFile( path.getParent(), file.getName(), ".tmp" );
+		try {
+			try( BufferedWriter writer = Files.newBufferedWriter( temp, TextUtil.DEFAULT_CHARSET ) ) {
+				writer.write( HEADER );
+				writer.newLine();
+				for( List<RunMetrics> list : runs.values() ) {
+					for( RunMetrics run : list ) {
+						writer.write( run.toLine() );
+						writer.newLine();
+					}
+				}
+			}
+
+			try {
+				Files.move( temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			} catch( AtomicMoveNotSupportedException exception ) {
+				Files.move( temp, path, StandardCopyOption.REPLACE_EXISTING );
+			}
+		} finally {
+			Files.deleteIfExists( temp );
+		}
+	}
+
+}
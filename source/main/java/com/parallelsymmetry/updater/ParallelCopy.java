@@ -0,0 +1,204 @@
+package com.parallelsymmetry.updater;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Copies a large stored archive entry in chunks on several threads with
+ * positional reads and writes, so one very large file can use the full
+ * bandwidth of the disk. The CRC of each chunk is computed by the thread that
+ * copies it and the chunk CRCs are combined into the CRC of the entry. A
+ * digest cannot be combined, so the calling thread computes it in order, one
+ * chunk at a time as the chunks complete, while the later chunks are still
+ * copied. This reads each chunk a second time, from the file just written
+ * rather than the archive, and the second read is charged to the throttle.
+ */
+final class ParallelCopy {
+
+	/**
+	 * The size from which stored entries are copied in parallel.
+	 */
+	static final long THRESHOLD = 64L * 1024 * 1024;
+
+	static final long CHUNK_SIZE = 8L * 1024 * 1024;
+
+	private static final int THREADS = Math.max( 2, Math.min( 4, Runtime.getRuntime().availableProcessors() ) );
+
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool( THREADS, runnable -> {
+		Thread thread = new Thread( runnable, "Update copy" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	private ParallelCopy() {}
+
+	/**
+	 * Copy bytes from an archive to a file. The length of the file is set first
+	 * by writing its last byte, which leaves a sparse file on most file systems
+	 * and does not reserve the space, and the chunks are written into place.
+	 *
+	 * @param source The archive
+	 * @param position The position of the data in the archive
+	 * @param size The number of bytes to copy
+	 * @param target The file to write, from the start, open for reading too
+	 * when there is a digest
+	 * @param throttle The I/O throttle
+	 * @param digest The digest to update with the data or null
+	 * @param progress Receives the bytes copied, on the calling thread
+	 * @return The CRC-32 of the data
+	 */
+	static long copy( FileChannel source, long position, long size, FileChannel target, IoThrottle throttle, MessageDigest digest, LongConsumer progress ) throws IOException {
+		if( size > 0 ) target.write( ByteBuffer.allocate( 1 ), size - 1 );
+
+		List<Future<Long>> chunks = new ArrayList<>();
+		for( long offset = 0; offset < size; offset += CHUNK_SIZE ) {
+			long start = offset;
+			long length = Math.min( CHUNK_SIZE, size - offset );
+			chunks.add( EXECUTOR.submit( () -> copyChunk( source, position + start, target, start, length, throttle ) ) );
+		}
+
+		try {
+			long crc = 0;
+			for( int index = 0; index < chunks.size(); index++ ) {
+				long length = Math.min( CHUNK_SIZE, size - index * CHUNK_SIZE );
+				crc = combineCrc( crc, await( chunks.get( index ) ), length );
+				if( digest != null ) digest( target, index * CHUNK_SIZE, length, throttle, digest );
+				progress.accept( length );
+			}
+			return crc;
+		} finally {
+			// Interrupting a chunk would close the shared channels.
+			for( Future<Long> chunk : chunks ) {
+				chunk.cancel( false );
+			}
+		}
+	}
+
+	private static long copyChunk( FileChannel source, long from, FileChannel target, long to, long length, IoThrottle throttle ) throws IOException {
+		BufferPool pool = BufferPool.get();
+		CRC32 crc = pool.getCrc();
+		long done = 0;
+		while( done < length ) {
+			ByteBuffer buffer = pool.getInput();
+			if( length - done < buffer.capacity() ) buffer.limit( (int)(length - done) );
+			int count = source.read( buffer, from + done );
+			if( count < 0 ) throw new EOFException( "Unexpected end of archive" );
+			throttle.acquireRead( count );
+			buffer.flip();
+			crc.update( buffer );
+			buffer.position( 0 );
+
+			throttle.acquireWrite( count );
+			long time = System.nanoTime();
+			while( buffer.hasRemaining() ) {
+				target.write( buffer, to + done + buffer.position() );
+			}
+			throttle.recordWrite( System.nanoTime() - time, count );
+			done += count;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Add a copied chunk to the digest, reading it back from the file.
+	 */
+	private static void digest( FileChannel source, long position, long size, IoThrottle throttle, MessageDigest digest ) throws IOException {
+		ByteBuffer buffer = BufferPool.get().getOutput();
+		long done = 0;
+		while( done < size ) {
+			buffer.clear();
+			if( size - done < buffer.capacity() ) buffer.limit( (int)(size - done) );
+			int count = source.read( buffer, position + done );
+			if( count < 0 ) throw new EOFException( "Unexpected end of file" );
+			throttle.acquireRead( count );
+			buffer.flip();
+			digest.update( buffer );
+			done += count;
+		}
+	}
+
+	private static long await( Future<Long> chunk ) throws IOException {
+		try {
+			return chunk.get();
+		} catch( InterruptedException exception ) {
+			throw new InterruptedIOException( "Interrupted copying chunk" );
+		} catch( ExecutionException exception ) {
+			Throwable cause = exception.getCause();
+			if( cause instanceof IOException ) throw (IOException)cause;
+			if( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+			if( cause instanceof Error ) throw (Error)cause;
+			throw new IOException( cause );
+		}
+	}
+
+	/**
+	 * Combine the CRC-32 of two consecutive blocks of data into the CRC-32 of
+	 * the whole, as crc32_combine() in zlib does. The first CRC is advanced
+	 * over the length of the second block with a matrix of the CRC polynomial
+	 * in GF(2) that is squared for each bit of the length.
+	 *
+	 * @param crc1 The CRC of the first block
+	 * @param crc2 The CRC of the second block
+	 * @param length2 The length of the second block
+	 * @return The CRC of both blocks
+	 */
+	static long combineCrc( long crc1, long crc2, long length2 ) {
+		if( length2 <= 0 ) return crc1;
+
+		long[] even = new long[ 32 ];
+		long[] odd = new long[ 32 ];
+
+		// The operator for one zero bit.
+		odd[ 0 ] = 0xedb88320L;
+		long row = 1;
+		for( int index = 1; index < 32; index++ ) {
+			odd[ index ] = row;
+			row <<= 1;
+		}
+
+		// The operators for two and four zero bits.
+		square( even, odd );
+		square( odd, even );
+
+		// Apply the operator for each one bit of the length in bytes.
+		do {
+			square( even, odd );
+			if( (length2 & 1) != 0 ) crc1 = times( even, crc1 );
+			length2 >>= 1;
+			if( length2 == 0 ) break;
+
+			square( odd, even );
+			if( (length2 & 1) != 0 ) crc1 = times( odd, crc1 );
+			length2 >>= 1;
+		} while( length2 != 0 );
+
+		return crc1 ^ crc2;
+	}
+
+	private static long times( long[] matrix, long vector ) {
+		long sum = 0;
+		for( int index = 0; vector != 0; index++, vector >>>= 1 ) {
+			if( (vector & 1) != 0 ) sum ^= matrix[ index ];
+		}
+		return sum;
+	}
+
+	private static void square( long[] square, long[] matrix ) {
+		for( int index = 0; index < 32; index++ ) {
+			square[ index ] = times( matrix, matrix[ index ] );
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.util.function.LongConsumer;
+
+/**
+ * Retries file operations that fail because a file is briefly busy, for
+ * example held open by a virus scanner, an indexer or a program that is still
+ * shutting down. The operation is retried with an exponential backoff up to a
+ * bounded number of times, so a short contention costs milliseconds instead
+ * of a revert of the whole update.
+ * <p>
+ * Only failures that can be transient are retried. A missing file, a file
+ * that already exists, a folder that is not empty or a denied access fails
+ * right away.
+ */
+public class RetryPolicy {
+
+	public static final int DEFAULT_RETRIES = 5;
+
+	public static final long DEFAULT_DELAY = 10;
+
+	public static final long DEFAULT_MAX_DELAY = 500;
+
+	public static final RetryPolicy NONE = new RetryPolicy( 0, 0, 0 );
+
+	/**
+	 * Retry five times over about a third of a second.
+	 */
+	public static final RetryPolicy DEFAULT = new RetryPolicy( DEFAULT_RETRIES, DEFAULT_DELAY, DEFAULT_MAX_DELAY );
+
+	private int retries;
+
+	private long delay;
+
+	private long maxDelay;
+
+	/**
+	 * Create a retry policy.
+	 *
+	 * @param retries The number of times to retry an operation
+	 * @param delay The wait before the first retry in milliseconds, doubled
+	 * for each retry after it
+	 * @param maxDelay The longest wait before a retry in milliseconds
+	 */
+	public RetryPolicy( int retries, long delay, long maxDelay ) {
+		this.retries = Math.max( 0, retries );
+		this.delay = delay;
+		this.maxDelay = maxDelay;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Get the wait before a retry.
+	 *
+	 * @param retry The retry, starting with one
+	 * @return The wait in milliseconds
+	 */
+	public long getDelay( int retry ) {
+		long value = retry > 30 ? maxDelay : delay << (retry - 1);
+		return Math.min( value, maxDelay );
+	}
+
+	/**
+	 * Check if a failure can be transient.
+	 */
+	public boolean isTransient( IOException exception ) {
+		if( exception instanceof NoSuchFileException ) return false;
+		if( exception instanceof AccessDeniedException ) return false;
+		if( exception instanceof FileAlreadyExistsException ) return false;
+		if( exception instanceof DirectoryNotEmptyException ) return false;
+		if( exception instanceof NotDirectoryException ) return false;
+		if( exception instanceof AtomicMoveNotSupportedException ) return false;
+		return exception instanceof FileSystemException;
+	}
+
+	/**
+	 * Run an operation, retrying transient failures.
+	 *
+	 * @param operation The operation
+	 * @param action What the operation does, for the log
+	 * @param file The file the operation works on, for the log
+	 * @param waited Receives the wait before each retry in milliseconds
+	 * @return The result of the operation
+	 * @throws IOException The last failure if the operation does not succeed
+	 */
+	public <T> T run( Operation<T> operation, String action, Object file, LongConsumer waited ) throws IOException {
+		for( int retry = 1; ; retry++ ) {
+			try {
+				return operation.run();
+			} catch( IOException exception ) {
+				if( retry > retries || !isTransient( exception ) ) throw exception;
+
+				long wait = getDelay( retry );
+				if( UpdateLog.isActive( Log.DEBUG ) ) Log.write( Log.DEBUG, "Retrying ", action, " in ", wait, "ms: ", file, " ", exception.getMessage() );
+				try {
+					Thread.sleep( wait );
+				} catch( InterruptedException interrupted ) {
+					throw new InterruptedIOException( "Interrupted retrying " + action + ": " + file );
+				}
+				if( waited != null ) waited.accept( wait );
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "retries=" + retries + " delay=" + delay + "ms max=" + maxDelay + "ms";
+	}
+
+	/**
+	 * A file operation that can be retried.
+	 */
+	public interface Operation<T> {
+
+		T run() throws IOException;
+
+	}
+
+}
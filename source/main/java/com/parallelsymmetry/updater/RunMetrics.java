@@ -0,0 +1,95 @@
+package com.parallelsymmetry.updater;
+
+import java.io.File;
+
+/**
+ * The measurements of one successful update of a target folder.
+ */
+class RunMetrics {
+
+	private long time;
+
+	private File target;
+
+	private long stageTime;
+
+	private long commitTime;
+
+	private long bytes;
+
+	private long files;
+
+	/**
+	 * Create run metrics.
+	 *
+	 * @param time The time the run finished in milliseconds since the epoch
+	 * @param target The target folder
+	 * @param stageTime The time spent staging in milliseconds
+	 * @param commitTime The time spent committing in milliseconds
+	 * @param bytes The bytes processed, written or found unchanged
+	 * @param files The files processed
+	 */
+	public RunMetrics( long time, File target, long stageTime, long commitTime, long bytes, long files ) {
+		this.time = time;
+		this.target = target;
+		this.stageTime = stageTime;
+		this.commitTime = commitTime;
+		this.bytes = bytes;
+		this.files = files;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	public long getStageTime() {
+		return stageTime;
+	}
+
+	public long getCommitTime() {
+		return commitTime;
+	}
+
+	public long getDuration() {
+		return stageTime + commitTime;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getFiles() {
+		return files;
+	}
+
+	/**
+	 * Get the throughput in bytes per second.
+	 */
+	public long getThroughput() {
+		return bytes * 1000 / Math.max( 1, getDuration() );
+	}
+
+	/**
+	 * Format the metrics as a history line. The target is last since it can
+	 * contain spaces.
+	 */
+	String toLine() {
+		return time + " " + stageTime + " " + commitTime + " " + bytes + " " + files + " " + target.getPath();
+	}
+
+	static RunMetrics parse( String line ) {
+		String[] values = line.split( " ", 6 );
+		if( values.length < 6 ) throw new IllegalArgumentException( "Invalid metrics line: " + line );
+		return new RunMetrics( Long.parseLong( values[ 0 ] ), new File( values[ 5 ] ), Long.parseLong( values[ 1 ] ), Long.parseLong( values[ 2 ] ), Long.parseLong( values[ 3 ] ), Long.parseLong( values[ 4 ] ) );
+	}
+
+	@Override
+	public String toString() {
+		return target + " (" + getDuration() + "ms, " + bytes + " bytes, " + files + " files)";
+	}
+
+}
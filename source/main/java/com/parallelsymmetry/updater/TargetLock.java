@@ -0,0 +1,239 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An exclusive lock on a target folder shared by every updater process on
+ * the host. Updates of the same target wait their turn in the order they
+ * asked for the lock, updates of different targets do not wait for each
+ * other.
+ * <p>
+ * The lock is an advisory file lock on a lock file next to the target. The
+ * order is kept with a ticket file for each waiting update in a queue folder
+ * next to the target. Each ticket is locked by its update, so a ticket left
+ * behind by an update that died is found with a lock attempt and removed.
+ * Threads of the same process wait on a fair in-process lock first, since file
+ * locks are held by the whole process.
+ * <p>
+ * The lock file and the queue folder need write access to the parent of the
+ * target, which {@link FileUpdateTask#needsElevation()} checks. They are
+ * removed again when the last update releases the lock. The lock file is
+ * removed while it is still locked and before the ticket of the update leaves
+ * the queue, so the next update in line always creates a new lock file.
+ */
+class TargetLock implements AutoCloseable {
+
+	static final String SUFFIX = ".lock";
+
+	private static final String QUEUE_SUFFIX = ".queue";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final long POLL_INTERVAL = 50;
+
+	private static final Map<Path, ReentrantLock> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private File target;
+
+	private Path path;
+
+	private Path queue;
+
+	private ReentrantLock local;
+
+	private boolean held;
+
+	private Path ticket;
+
+	private FileChannel ticketChannel;
+
+	private FileChannel channel;
+
+	private FileLock lock;
+
+	private TargetLock( File target ) {
+		File folder = target.getAbsoluteFile();
+		this.target = folder;
+		this.path = new File( folder.getParentFile(), folder.getName() + SUFFIX ).toPath();
+		this.queue = new File( folder.getParentFile(), folder.getName() + QUEUE_SUFFIX ).toPath();
+		this.local = LOCAL_LOCKS.computeIfAbsent( path, key -> new ReentrantLock( true ) );
+	}
+
+	/**
+	 * Wait for the lock on a target folder.
+	 *
+	 * @param target The target folder
+	 * @param timeout The longest time to wait in milliseconds or zero to wait
+	 * as long as it takes
+	 * @return The lock, to be closed when the update is done
+	 * @throws IOException If the lock cannot be acquired in time
+	 */
+	public static TargetLock acquire( File target, long timeout ) throws IOException {
+		long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeout ) : Long.MAX_VALUE;
+		TargetLock lock = new TargetLock( target );
+		try {
+			lock.acquire( deadline );
+		} catch( IOException | RuntimeException exception ) {
+			lock.close();
+			throw exception;
+		}
+		return lock;
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	private void acquire( long deadline ) throws IOException {
+		if( local.isHeldByCurrentThread() ) throw new IllegalStateException( "Target already locked: " + target );
+		try {
+			if( !local.tryLock( Math.max( 0, deadline - System.nanoTime() ), TimeUnit.NANOSECONDS ) ) throw timeout();
+			held = true;
+		} catch( InterruptedException exception ) {
+			throw new InterruptedIOException( "Interrupted waiting for target: " + target );
+		}
+
+		enqueue();
+		boolean waiting = false;
+		while( true ) {
+			int ahead = countAhead();
+			if( ahead == 0 ) {
+				channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+				lock = channel.tryLock();
+				if( lock != null ) break;
+				// The lock file may be removed before the next attempt
+				channel.close();
+				channel = null;
+			}
+
+			if( !waiting ) {
+				Log.write( "Waiting for target: ", target, " (", ahead, " updates ahead)" );
+				waiting = true;
+			}
+			if( System.nanoTime() > deadline ) throw timeout();
+			try {
+				Thread.sleep( POLL_INTERVAL );
+			} catch( InterruptedException exception ) {
+				throw new InterruptedIOException( "Interrupted waiting for target: " + target );
+			}
+		}
+
+		Log.write( Log.TRACE, "Locked: ", target );
+	}
+
+	/**
+	 * Add a ticket to the queue. The ticket is locked under a temporary name
+	 * and then renamed, so no other update sees an unlocked ticket.
+	 */
+	private void enqueue() throws IOException {
+		String name = String.format( "%019d-%d-%d", System.currentTimeMillis(), ProcessHandle.current().pid(), SEQUENCE.incrementAndGet() );
+		Path temp = queue.resolve( name + TEMP_SUFFIX );
+		ticket = queue.resolve( name );
+		while( ticketChannel == null ) {
+			Files.createDirectories( queue );
+			try {
+				ticketChannel = FileChannel.open( temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+			} catch( NoSuchFileException exception ) {
+				// The last update released the lock and removed the queue folder
+			}
+		}
+		ticketChannel.lock();
+		Files.move( temp, ticket, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	/**
+	 * Count the live tickets ahead of this one. Tickets of updates that died
+	 * are removed.
+	 */
+	private int countAhead() throws IOException {
+		String name = ticket.getFileName().toString();
+		List<Path> tickets;
+		try( Stream<Path> files = Files.list( queue ) ) {
+			tickets = files.filter( file -> !file.getFileName().toString().endsWith( TEMP_SUFFIX ) ).filter( file -> file.getFileName().toString().compareTo( name ) < 0 ).collect( Collectors.toList() );
+		}
+
+		int count = 0;
+		for( Path other : tickets ) {
+			if( isAlive( other ) ) count++;
+		}
+		return count;
+	}
+
+	private boolean isAlive( Path other ) throws IOException {
+		try( FileChannel otherChannel = FileChannel.open( other, StandardOpenOption.WRITE ) ) {
+			FileLock otherLock = otherChannel.tryLock();
+			if( otherLock == null ) return true;
+			otherLock.release();
+		} catch( OverlappingFileLockException exception ) {
+			return true;
+		} catch( NoSuchFileException exception ) {
+			return false;
+		}
+
+		Log.write( Log.DEBUG, "Removing stale ticket: ", other );
+		Files.deleteIfExists( other );
+		return false;
+	}
+
+	/**
+	 * Remove the queue folder if no other update is waiting in it.
+	 */
+	private void removeQueue() {
+		try {
+			Files.deleteIfExists( queue );
+		} catch( IOException exception ) {
+			// Another update is waiting
+		}
+	}
+
+	private IOException timeout() {
+		return new IOException( "Timed out waiting for target: " + target );
+	}
+
+	@Override
+	public void close() {
+		try {
+			if( lock != null ) {
+				Files.deleteIfExists( path );
+				lock.release();
+			}
+			if( channel != null ) channel.close();
+			if( ticketChannel != null ) {
+				// Take the ticket out of the queue before it is unlocked
+				Path temp = queue.resolve( ticket.getFileName() + TEMP_SUFFIX );
+				if( Files.exists( ticket ) ) Files.move( ticket, temp, StandardCopyOption.ATOMIC_MOVE );
+				ticketChannel.close();
+				Files.deleteIfExists( temp );
+				removeQueue();
+			}
+		} catch( IOException exception ) {
+			Log.write( Log.WARN, "Could not release target lock: ", target, " ", exception.getMessage() );
+		} finally {
+			if( lock != null ) Log.write( Log.TRACE, "Unlocked: ", target );
+			lock = null;
+			channel = null;
+			ticketChannel = null;
+			if( held ) local.unlock();
+			held = false;
+		}
+	}
+
+}
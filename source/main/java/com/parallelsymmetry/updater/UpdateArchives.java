@@ -0,0 +1,254 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.TextUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * The net content of one or more update archives applied to the same target in
+ * order. When more than one archive has the same entry the last archive wins,
+ * so each file is extracted once from the archive with its final content.
+ */
+class UpdateArchives {
+
+	/**
+	 * The archive entry that lists installed files to remove, one entry name
+	 * per line.
+	 */
+	public static final String REMOVE_ENTRY = "META-INF/UPDATER.REMOVE";
+
+	private List<File> sources;
+
+	private List<ZipDirectory> directories;
+
+	private List<UpdateManifest> manifests;
+
+	/**
+	 * The index of the archive that provides each entry. This is only needed,
+	 * and only created, when there is more than one archive.
+	 */
+	private Map<String, Integer> winners;
+
+	private Set<String> removals;
+
+	public UpdateArchives() {
+		this.sources = new ArrayList<>();
+		this.directories = new ArrayList<>();
+		this.manifests = new ArrayList<>();
+		this.removals = new HashSet<>();
+	}
+
+	/**
+	 * Read the central directory and the manifest of each archive. The archive
+	 * content is checked against the manifest before anything is staged.
+	 *
+	 * @param sources The archives in the order they are applied
+	 * @return The update archives
+	 */
+	public static UpdateArchives read( List<File> sources ) throws IOException {
+		UpdateArchives archives = new UpdateArchives();
+		for( File source : sources ) {
+			archives.add( source );
+		}
+		return archives;
+	}
+
+	/**
+	 * Add an archive to apply after the archives already added.
+	 *
+	 * @param source The update archive
+	 */
+	public void add( File source ) throws IOException {
+		ZipDirectory directory = ZipDirectory.read( source );
+		UpdateManifest manifest = UpdateManifest.read( directory );
+		if( manifest != null ) manifest.validate( directory );
+
+		sources.add( source );
+		directories.add( directory );
+		manifests.add( manifest );
+		if( directory.getEntry( REMOVE_ENTRY ) != null ) readRemovals( source );
+
+		if( directories.size() > 1 ) {
+			if( winners == null ) {
+				winners = new HashMap<>();
+				addWinners( 0 );
+			}
+			addWinners( directories.size() - 1 );
+		}
+	}
+
+	/**
+	 * Resolve an entry name in a folder. Names that are absolute, start with a
+	 * root or a drive, or leave the folder through parent references are
+	 * rejected, so an archive cannot write or remove files outside the target.
+	 *
+	 * @param folder The folder
+	 * @param name The entry name
+	 * @return The path of the entry in the folder
+	 * @throws ZipException If the name is outside of the folder
+	 */
+	static Path resolve( Path folder, String name ) throws ZipException {
+		if( name.startsWith( "/" ) || name.startsWith( "\\" ) || (name.length() > 1 && name.charAt( 1 ) == ':') ) throw new ZipException( "Entry outside of target: " + name );
+
+		Path file;
+		try {
+			Path path = folder.getFileSystem().getPath( name );
+			if( path.isAbsolute() || path.getRoot() != null ) throw new ZipException( "Entry outside of target: " + name );
+			file = folder.resolve( path );
+		} catch( InvalidPathException exception ) {
+			throw new ZipException( "Invalid entry name: " + name );
+		}
+
+		// Only a parent reference can leave the folder once rooted names are rejected.
+		if( name.contains( ".." ) && !file.normalize().startsWith( folder.normalize() ) ) throw new ZipException( "Entry outside of target: " + name );
+		return file;
+	}
+
+	private void readRemovals( File source ) throws IOException {
+		try( ZipFile zip = new ZipFile( source ); BufferedReader reader = new BufferedReader( new InputStreamReader( zip.getInputStream( zip.getEntry( REMOVE_ENTRY ) ), TextUtil.DEFAULT_CHARSET ) ) ) {
+			String line;
+			while( (line = reader.readLine()) != null ) {
+				line = line.trim();
+				if( line.isEmpty() || line.startsWith( "#" ) ) continue;
+				while( line.startsWith( "/" ) ) {
+					line = line.substring( 1 );
+				}
+				removals.add( line );
+			}
+		}
+	}
+
+	private void addWinners( int index ) {
+		for( ZipDirectory.Entry entry : directories.get( index ).getEntries() ) {
+			winners.put( entry.getName(), index );
+		}
+	}
+
+	public int size() {
+		return sources.size();
+	}
+
+	public File getSource( int index ) {
+		return sources.get( index );
+	}
+
+	public ZipDirectory getDirectory( int index ) {
+		return directories.get( index );
+	}
+
+	/**
+	 * Check if any of the archives has a manifest.
+	 */
+	public boolean isVerified() {
+		for( UpdateManifest manifest : manifests ) {
+			if( manifest != null ) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check if an archive provides the final content of an entry. Entries that
+	 * a later archive replaces are skipped.
+	 */
+	public boolean isFinal( int index, ZipDirectory.Entry entry ) {
+		if( UpdateManifest.ENTRY.equals( entry.getName() ) || REMOVE_ENTRY.equals( entry.getName() ) ) return false;
+		if( winners == null ) return true;
+		return winners.get( entry.getName() ) == index && directories.get( index ).getEntry( entry.getName() ) == entry;
+	}
+
+	/**
+	 * Get the manifest entry for the final content of an entry.
+	 *
+	 * @param index The index of the archive that provides the entry
+	 * @param name The entry name
+	 * @return The manifest entry or null if the archive does not have a manifest
+	 */
+	public UpdateManifest.Entry getExpected( int index, String name ) {
+		UpdateManifest manifest = manifests.get( index );
+		return manifest == null ? null : manifest.getEntry( name );
+	}
+
+	/**
+	 * Get the manifest entry for the final content of an entry in any of the
+	 * archives.
+	 */
+	public UpdateManifest.Entry getExpected( String name ) {
+		if( winners == null ) return getExpected( 0, name );
+		Integer index = winners.get( name );
+		return index == null ? null : getExpected( index, name );
+	}
+
+	/**
+	 * Check if any of the archives has an entry.
+	 */
+	public boolean contains( String name ) {
+		if( winners == null ) return directories.get( 0 ).getEntry( name ) != null;
+		return winners.containsKey( name );
+	}
+
+	/**
+	 * Get the installed files to remove. These are the files in the removal
+	 * lists of the archives and, when pruning, every file under the target
+	 * folder that is not in the archives. Files an archive provides are never
+	 * removed.
+	 *
+	 * @param root The installed target folder
+	 * @param prune True to remove every file not in the archives
+	 * @return The sorted entry names of the files to remove
+	 */
+	public List<String> getRemovals( Path root, boolean prune ) throws IOException {
+		Set<String> names = new TreeSet<>();
+		for( String name : removals ) {
+			if( contains( name ) ) continue;
+			Path file;
+			try {
+				file = resolve( root, name );
+			} catch( ZipException exception ) {
+				continue;
+			}
+			if( Files.isRegularFile( file, LinkOption.NOFOLLOW_LINKS ) || Files.isSymbolicLink( file ) ) names.add( name );
+		}
+
+		if( prune && Files.isDirectory( root ) ) {
+			Files.walkFileTree( root, new SimpleFileVisitor<Path>() {
+
+				@Override
+				public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) {
+					String name = root.relativize( file ).toString().replace( File.separatorChar, '/' );
+					if( isStaged( name ) || contains( name ) ) return FileVisitResult.CONTINUE;
+					names.add( name );
+					return FileVisitResult.CONTINUE;
+				}
+
+			} );
+		}
+
+		return new ArrayList<>( names );
+	}
+
+	private boolean isStaged( String name ) {
+		return name.endsWith( FileUpdateTask.ADD_SUFFIX ) || name.endsWith( FileUpdateTask.DEL_SUFFIX );
+	}
+
+	/**
+	 * Get the total size of the final content of the archives.
+	 */
+	public long getSize() {
+		long size = 0;
+		for( int index = 0; index < directories.size(); index++ ) {
+			for( ZipDirectory.Entry entry : directories.get( index ).getEntries() ) {
+				if( isFinal( index, entry ) ) size += entry.getSize();
+			}
+		}
+		return size;
+	}
+
+}
@@ -0,0 +1,21 @@
+package com.parallelsymmetry.updater;
+
+import java.io.IOException;
+
+/**
+ * A hook called by the update tasks at set points while staging and
+ * committing. Tests use it to inject failures and measure the cost of a
+ * revert.
+ */
+interface UpdateFault {
+
+	/**
+	 * Called after an entry has been handled in the given phase.
+	 *
+	 * @param phase The update phase
+	 * @param entry The archive entry name that was just handled
+	 * @throws IOException To fail the update at this point
+	 */
+	void check( UpdatePhase phase, String entry ) throws IOException;
+
+}
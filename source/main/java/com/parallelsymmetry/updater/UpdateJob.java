@@ -0,0 +1,344 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A set of updates and launches run in the calling process. This is the
+ * programmatic form of the updater command line, for programs that apply
+ * updates in-process instead of starting an updater.
+ * <p>
+ * A job is created with a {@link Builder} and run with {@link #execute()}.
+ * The update tasks run in order, then the launch tasks and then the cleanup of
+ * the update tasks. The listener receives the task, phase and progress
+ * events, all for the tasks of {@link #getUpdateTasks()}. The tasks do not
+ * elevate, so the targets must be writable by the calling process.
+ */
+public final class UpdateJob {
+
+	private List<UpdateTask> updateTasks;
+
+	private List<LaunchTask> launchTasks;
+
+	private UpdateListener listener;
+
+	private boolean fanOut;
+
+	private UpdateJob( Builder builder ) {
+		this.updateTasks = Collections.unmodifiableList( builder.createUpdateTasks() );
+		this.fanOut = builder.fanOut;
+		this.launchTasks = Collections.unmodifiableList( new ArrayList<>( builder.launchTasks ) );
+		this.listener = builder.listener;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Get the update tasks, one for each target.
+	 */
+	public List<UpdateTask> getUpdateTasks() {
+		return updateTasks;
+	}
+
+	public List<LaunchTask> getLaunchTasks() {
+		return launchTasks;
+	}
+
+	/**
+	 * Run the job on a new thread.
+	 *
+	 * @return The future of the job, which fails with the failure of the first
+	 * task that failed
+	 */
+	public Future<Void> execute() {
+		FutureTask<Void> future = new FutureTask<>( this::call );
+		Thread thread = new Thread( future, "Update job" );
+		thread.setDaemon( true );
+		thread.start();
+		return future;
+	}
+
+	/**
+	 * Run the job with an executor.
+	 *
+	 * @param executor The executor to run the job
+	 * @return The future of the job, which fails with the failure of the first
+	 * task that failed
+	 */
+	public Future<Void> execute( ExecutorService executor ) {
+		return executor.submit( this::call );
+	}
+
+	/**
+	 * Run the job on the calling thread. A failed update does not stop the
+	 * other updates, as with the command line, and the launch tasks run either
+	 * way. The failures are thrown after the cleanup, the first failure with the
+	 * others suppressed.
+	 */
+	public void run() throws Exception {
+		Throwable failure = null;
+
+		Log.write( Log.TRACE, "Update job: ", updateTasks.size(), " updates, ", launchTasks.size(), " launches" );
+		try( UpdatePipeline pipeline = new UpdatePipeline( fanOut ? FanOutUpdateTask.group( updateTasks ) : updateTasks ) ) {
+			for( int index = 0; index < pipeline.size(); index++ ) {
+				if( Thread.currentThread().isInterrupted() ) {
+					failure = addFailure( failure, new InterruptedException( "Update job interrupted" ) );
+					break;
+				}
+
+				List<? extends UpdateTask> tasks = getTargetTasks( pipeline.getTask( index ) );
+				Throwable throwable = null;
+				if( listener != null ) {
+					for( UpdateTask task : tasks ) {
+						listener.started( task );
+					}
+				}
+				try {
+					pipeline.execute( index );
+				} catch( Throwable exception ) {
+					Log.write( exception );
+					throwable = exception;
+					failure = addFailure( failure, exception );
+				}
+				if( listener != null ) {
+					for( UpdateTask task : tasks ) {
+						listener.finished( task, throwable );
+					}
+				}
+			}
+		}
+
+		for( LaunchTask task : launchTasks ) {
+			try {
+				task.execute();
+			} catch( Throwable throwable ) {
+				Log.write( throwable );
+				failure = addFailure( failure, throwable );
+			}
+		}
+
+		for( UpdateTask task : updateTasks ) {
+			try {
+				task.cleanup();
+			} catch( Throwable throwable ) {
+				Log.write( throwable );
+			}
+		}
+
+		if( failure instanceof Exception ) throw (Exception)failure;
+		if( failure instanceof Error ) throw (Error)failure;
+		if( failure != null ) throw new Exception( failure );
+	}
+
+	/**
+	 * Get the tasks of each target of a pipeline task. The listener receives
+	 * the phase and progress of the file update tasks inside a fan-out task, so
+	 * it receives their start and finish too, never the fan-out task itself.
+	 */
+	private List<? extends UpdateTask> getTargetTasks( UpdateTask task ) {
+		if( task instanceof FanOutUpdateTask ) return ((FanOutUpdateTask)task).getTasks();
+		return List.of( task );
+	}
+
+	private Void call() throws Exception {
+		run();
+		return null;
+	}
+
+	private Throwable addFailure( Throwable failure, Throwable throwable ) {
+		if( failure == null ) return throwable;
+		failure.addSuppressed( throwable );
+		return failure;
+	}
+
+	/**
+	 * Builds an update job. The options apply to every update added to the
+	 * builder.
+	 */
+	public static final class Builder {
+
+		private List<File> sources = new ArrayList<>();
+
+		private List<File> targets = new ArrayList<>();
+
+		private List<LaunchTask> launchTasks = new ArrayList<>();
+
+		private boolean swap;
+
+		private boolean deferCleanup;
+
+		private boolean prune;
+
+		private boolean sequential;
+
+		private boolean fanOut;
+
+		private File store;
+
+		private long lockTimeout = FileUpdateTask.DEFAULT_LOCK_TIMEOUT;
+
+		private IoThrottle throttle = IoThrottle.NONE;
+
+		private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+		private UpdateListener listener;
+
+		private Builder() {}
+
+		/**
+		 * Add an update of a target folder from an archive. Consecutive updates
+		 * of the same target are applied as one update.
+		 *
+		 * @param source The update archive
+		 * @param target The target folder
+		 */
+		public Builder update( File source, File target ) {
+			if( source == null ) throw new IllegalArgumentException( "Source parameter not specified." );
+			if( target == null ) throw new IllegalArgumentException( "Target parameter not specified." );
+			sources.add( source );
+			targets.add( target );
+			return this;
+		}
+
+		/**
+		 * Add a program to launch after the updates.
+		 *
+		 * @param command The command and its arguments
+		 * @param folder The working folder or null for the current folder
+		 */
+		public Builder launch( List<String> command, String folder ) {
+			return launch( new ProcessLaunchTask( command, folder ) );
+		}
+
+		public Builder launch( LaunchTask task ) {
+			launchTasks.add( task );
+			return this;
+		}
+
+		/**
+		 * @see FileUpdateTask#setSwap(boolean)
+		 */
+		public Builder swap( boolean swap ) {
+			this.swap = swap;
+			return this;
+		}
+
+		/**
+		 * @see FileUpdateTask#setDeferCleanup(boolean)
+		 */
+		public Builder deferCleanup( boolean deferCleanup ) {
+			this.deferCleanup = deferCleanup;
+			return this;
+		}
+
+		/**
+		 * @see FileUpdateTask#setPrune(boolean)
+		 */
+		public Builder prune( boolean prune ) {
+			this.prune = prune;
+			return this;
+		}
+
+		/**
+		 * @see FileUpdateTask#setSequential(boolean)
+		 */
+		public Builder sequential( boolean sequential ) {
+			this.sequential = sequential;
+			return this;
+		}
+
+		/**
+		 * Read the archives once for consecutive updates of several targets from
+		 * the same archives. The targets of such updates are staged before any
+		 * of them is committed and are reverted together if any of them fails.
+		 *
+		 * @see FanOutUpdateTask
+		 */
+		public Builder fanOut( boolean fanOut ) {
+			this.fanOut = fanOut;
+			return this;
+		}
+
+		/**
+		 * @see FileUpdateTask#setStore(File)
+		 */
+		public Builder store( File folder ) {
+			this.store = folder;
+			return this;
+		}
+
+		/**
+		 * @see FileUpdateTask#setLockTimeout(long)
+		 */
+		public Builder lockTimeout( long timeout ) {
+			this.lockTimeout = timeout;
+			return this;
+		}
+
+		/**
+		 * @see FileUpdateTask#setThrottle(IoThrottle)
+		 */
+		public Builder throttle( IoThrottle throttle ) {
+			this.throttle = throttle;
+			return this;
+		}
+
+		/**
+		 * @see FileUpdateTask#setRetryPolicy(RetryPolicy)
+		 */
+		public Builder retryPolicy( RetryPolicy retryPolicy ) {
+			this.retryPolicy = retryPolicy;
+			return this;
+		}
+
+		public Builder listener( UpdateListener listener ) {
+			this.listener = listener;
+			return this;
+		}
+
+		public UpdateJob build() {
+			return new UpdateJob( this );
+		}
+
+		/**
+		 * Create a file update task for each target, merging consecutive updates
+		 * of the same target.
+		 */
+		List<UpdateTask> createUpdateTasks() {
+			List<UpdateTask> tasks = new ArrayList<>();
+			FileUpdateTask last = null;
+			for( int index = 0; index < sources.size(); index++ ) {
+				File source = sources.get( index );
+				File target = targets.get( index );
+				if( last != null && last.getTarget().equals( target ) ) {
+					last.addSource( source );
+					continue;
+				}
+
+				last = new FileUpdateTask( source, target );
+				last.setSwap( swap );
+				last.setDeferCleanup( deferCleanup );
+				last.setPrune( prune );
+				last.setSequential( sequential );
+				last.setStore( store );
+				last.setLockTimeout( lockTimeout );
+				last.setThrottle( throttle );
+				last.setRetryPolicy( retryPolicy );
+				last.setListener( listener );
+				tasks.add( last );
+			}
+			return tasks;
+		}
+
+	}
+
+}
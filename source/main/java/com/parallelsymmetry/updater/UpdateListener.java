@@ -0,0 +1,43 @@
+package com.parallelsymmetry.updater;
+
+/**
+ * Receives progress and phase events from the update tasks. The methods are
+ * called on the thread running the task.
+ */
+public interface UpdateListener {
+
+	/**
+	 * Called before a task starts.
+	 *
+	 * @param task The task
+	 */
+	default void started( UpdateTask task ) {}
+
+	/**
+	 * Called as a task enters a phase. A task that fails enters the revert
+	 * phase before it finishes.
+	 *
+	 * @param task The task
+	 * @param phase The phase the task enters
+	 */
+	default void phase( UpdateTask task, UpdatePhase phase ) {}
+
+	/**
+	 * Called as a task works through its content. The bytes of files the task
+	 * leaves unchanged are reported when they are skipped, so the total reported
+	 * by a task that completes matches the size of the task.
+	 *
+	 * @param task The task
+	 * @param bytes The number of bytes processed since the last call
+	 */
+	default void progress( UpdateTask task, long bytes ) {}
+
+	/**
+	 * Called after a task finishes, whether it succeeded or not.
+	 *
+	 * @param task The task
+	 * @param failure The cause of the failure or null if the task succeeded
+	 */
+	default void finished( UpdateTask task, Throwable failure ) {}
+
+}
@@ -0,0 +1,36 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Level checks and lazily built messages for the logging in the update hot
+ * path. The update tasks write a message for every archive entry at the debug
+ * and trace levels, so the messages are only built when something will
+ * actually write them.
+ * <p>
+ * The threshold is the lowest level any log handler accepts. Until the updater
+ * sets it every level is active, so the tasks log as before when they are used
+ * without the updater.
+ */
+final class UpdateLog {
+
+	private static volatile int threshold = Level.ALL.intValue();
+
+	private UpdateLog() {}
+
+	static void setLevel( Level level ) {
+		threshold = level.intValue();
+	}
+
+	static boolean isActive( Level level ) {
+		return level.intValue() >= threshold;
+	}
+
+	static void write( Level level, Supplier<?> message ) {
+		if( isActive( level ) ) Log.write( level, message.get() );
+	}
+
+}
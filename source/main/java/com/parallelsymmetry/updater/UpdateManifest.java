@@ -0,0 +1,339 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.TextUtil;
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+import java.util.zip.*;
+
+/**
+ * The update manifest is an optional entry in an update archive that lists the
+ * path, size, digest and mode of every file in the archive. When present the
+ * update task uses it to verify entries while they are staged and to skip
+ * files that are already up to date.
+ * <p>
+ * The manifest is a UTF-8 text file with a header line followed by one line
+ * per file with tab separated digest, size, octal mode (or - if unknown) and
+ * path fields.
+ */
+public class UpdateManifest {
+
+	public static final String ENTRY = "META-INF/UPDATER.MF";
+
+	public static final String ALGORITHM = "SHA-256";
+
+	private static final String HEADER = "# Updater manifest 1 " + ALGORITHM;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final Pattern HEX_DIGEST = Pattern.compile( "[0-9a-f]{64}" );
+
+	private Map<String, Entry> entries = new LinkedHashMap<>();
+
+	public Entry getEntry( String path ) {
+		return entries.get( path );
+	}
+
+	public Collection<Entry> getEntries() {
+		return Collections.unmodifiableCollection( entries.values() );
+	}
+
+	public void add( Entry entry ) {
+		entries.put( entry.getPath(), entry );
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Read the manifest from an update archive.
+	 *
+	 * @param zip The update archive
+	 * @return The manifest or null if the archive does not have one
+	 */
+	public static UpdateManifest read( ZipFile zip ) throws IOException {
+		ZipEntry entry = zip.getEntry( ENTRY );
+		if( entry == null ) return null;
+		try( InputStream input = zip.getInputStream( entry ) ) {
+			return read( input );
+		}
+	}
+
+	/**
+	 * Read the manifest from an update archive if the central directory lists
+	 * one.
+	 *
+	 * @return The manifest or null if the archive does not have one
+	 */
+	static UpdateManifest read( ZipDirectory directory ) throws IOException {
+		if( directory.getEntry( ENTRY ) == null ) return null;
+		try( ZipFile zip = new ZipFile( directory.getFile() ) ) {
+			return read( zip );
+		}
+	}
+
+	public static UpdateManifest read( InputStream input ) throws IOException {
+		BufferedReader reader = new BufferedReader( new InputStreamReader( input, TextUtil.DEFAULT_CHARSET ) );
+		String line = reader.readLine();
+		if( !HEADER.equals( line ) ) throw new IOException( "Unsupported manifest: " + line );
+
+		UpdateManifest manifest = new UpdateManifest();
+		while( (line = reader.readLine()) != null ) {
+			if( line.isEmpty() ) continue;
+			String[] fields = line.split( "\t", 4 );
+			if( fields.length != 4 ) throw new IOException( "Invalid manifest line: " + line );
+			if( !HEX_DIGEST.matcher( fields[ 0 ] ).matches() ) throw new IOException( "Invalid manifest line: " + line );
+			try {
+				int mode = "-".equals( fields[ 2 ] ) ? -1 : Integer.parseInt( fields[ 2 ], 8 );
+				manifest.add( new Entry( fields[ 3 ], Long.parseLong( fields[ 1 ] ), fields[ 0 ], mode ) );
+			} catch( NumberFormatException exception ) {
+				throw new IOException( "Invalid manifest line: " + line );
+			}
+		}
+		return manifest;
+	}
+
+	public void write( OutputStream output ) throws IOException {
+		Writer writer = new BufferedWriter( new OutputStreamWriter( output, TextUtil.DEFAULT_CHARSET ) );
+		writer.write( HEADER );
+		writer.write( '\n' );
+		for( Entry entry : entries.values() ) {
+			writer.write( entry.getDigest() );
+			writer.write( '\t' );
+			writer.write( String.valueOf( entry.getSize() ) );
+			writer.write( '\t' );
+			writer.write( entry.getMode() < 0 ? "-" : Integer.toOctalString( entry.getMode() ) );
+			writer.write( '\t' );
+			writer.write( entry.getPath() );
+			writer.write( '\n' );
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Check that the archive contains exactly the files listed in the manifest
+	 * with the listed sizes. This is done before anything is staged so that a
+	 * truncated or altered archive is rejected up front.
+	 */
+	public void validate( ZipDirectory directory ) throws IOException {
+		int count = 0;
+		for( ZipDirectory.Entry zipEntry : directory.getEntries() ) {
+			if( zipEntry.isDirectory() || ENTRY.equals( zipEntry.getName() ) ) continue;
+			Entry entry = entries.get( zipEntry.getName() );
+			if( entry == null ) throw new IOException( "Archive entry not in manifest: " + zipEntry.getName() );
+			if( zipEntry.getSize() != entry.getSize() ) throw new IOException( "Archive entry size does not match manifest: " + zipEntry.getName() );
+			count++;
+		}
+		if( count != entries.size() ) throw new IOException( "Archive is missing entries listed in manifest: " + directory.getFile() );
+	}
+
+	public static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance( ALGORITHM );
+		} catch( NoSuchAlgorithmException exception ) {
+			throw new RuntimeException( exception );
+		}
+	}
+
+	public static String toHex( byte[] digest ) {
+		return HexFormat.of().formatHex( digest );
+	}
+
+	public static String digest( File file ) throws IOException {
+		return BufferPool.get().digest( file.toPath(), IoThrottle.NONE );
+	}
+
+	public static String digest( InputStream input ) throws IOException {
+		MessageDigest digest = createDigest();
+		byte[] buffer = new byte[ BUFFER_SIZE ];
+		int read;
+		while( (read = input.read( buffer )) > -1 ) {
+			digest.update( buffer, 0, read );
+		}
+		return toHex( digest.digest() );
+	}
+
+	/**
+	 * Create a manifest for an update archive. The entries are hashed in
+	 * parallel.
+	 *
+	 * @param archive The update archive
+	 * @return The manifest of the archive
+	 */
+	public static UpdateManifest create( File archive ) throws IOException {
+		ZipDirectory directory = ZipDirectory.read( archive );
+		ExecutorService executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		try( ZipFile zip = new ZipFile( archive ) ) {
+			List<Future<Entry>> futures = new ArrayList<>();
+			for( ZipDirectory.Entry zipEntry : directory.getEntries() ) {
+				if( zipEntry.isDirectory() || ENTRY.equals( zipEntry.getName() ) ) continue;
+				futures.add( executor.submit( () -> {
+					try( InputStream input = zip.getInputStream( zip.getEntry( zipEntry.getName() ) ) ) {
+						return new Entry( zipEntry.getName(), zipEntry.getSize(), digest( input ), zipEntry.getUnixMode() );
+					}
+				} ) );
+			}
+
+			UpdateManifest manifest = new UpdateManifest();
+			for( Future<Entry> future : futures ) {
+				manifest.add( future.get() );
+			}
+			return manifest;
+		} catch( InterruptedException exception ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Manifest creation interrupted: " + archive );
+		} catch( ExecutionException exception ) {
+			if( exception.getCause() instanceof IOException ) throw (IOException)exception.getCause();
+			throw new IOException( exception.getCause() );
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Store the manifest in an update archive, replacing any existing manifest.
+	 * The manifest entry is appended after the existing entries so the archive
+	 * content does not need to be compressed again.
+	 *
+	 * @param archive The update archive
+	 */
+	public void store( File archive ) throws IOException {
+		ZipDirectory directory = ZipDirectory.read( archive );
+		if( directory.isZip64() ) throw new ZipException( "Zip64 archives are not supported: " + archive );
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		write( content );
+		byte[] data = content.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update( data );
+		Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try( DeflaterOutputStream output = new DeflaterOutputStream( compressed, deflater ) ) {
+			output.write( data );
+		} finally {
+			deflater.end();
+		}
+		byte[] deflated = compressed.toByteArray();
+		byte[] name = ENTRY.getBytes( TextUtil.DEFAULT_CHARSET );
+		int dosTime = toDosTime( System.currentTimeMillis() );
+
+		File temp = new File( archive.getAbsoluteFile().getParentFile(), archive.getName() + ".tmp" );
+		Files.copy( archive.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		try( FileChannel channel = FileChannel.open( temp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+			long position = directory.getOffset();
+
+			// Write the manifest entry where the central directory started.
+			ByteBuffer local = ByteBuffer.allocate( ZipDirectory.LOCAL_HEADER_SIZE + name.length ).order( ByteOrder.LITTLE_ENDIAN );
+			local.putInt( ZipDirectory.LOCAL_SIGNATURE ).putShort( (short)20 ).putShort( (short)0x0800 ).putShort( (short)ZipEntry.DEFLATED );
+			local.putInt( dosTime ).putInt( (int)crc.getValue() ).putInt( deflated.length ).putInt( data.length );
+			local.putShort( (short)name.length ).putShort( (short)0 ).put( name ).flip();
+			long manifestOffset = position;
+			position += write( channel, local, position );
+			position += write( channel, ByteBuffer.wrap( deflated ), position );
+
+			// Copy the existing central directory records except an old manifest.
+			long directoryOffset = position;
+			int count = 0;
+			try( FileChannel source = FileChannel.open( archive.toPath(), StandardOpenOption.READ ) ) {
+				for( ZipDirectory.Entry entry : directory.getEntries() ) {
+					if( ENTRY.equals( entry.getName() ) ) continue;
+					position += write( channel, ZipDirectory.readBuffer( source, entry.getRecordOffset(), entry.getRecordLength() ), position );
+					count++;
+				}
+			}
+
+			ByteBuffer central = ByteBuffer.allocate( ZipDirectory.CENTRAL_HEADER_SIZE + name.length ).order( ByteOrder.LITTLE_ENDIAN );
+			central.putInt( ZipDirectory.CENTRAL_SIGNATURE ).putShort( (short)20 ).putShort( (short)20 ).putShort( (short)0x0800 ).putShort( (short)ZipEntry.DEFLATED );
+			central.putInt( dosTime ).putInt( (int)crc.getValue() ).putInt( deflated.length ).putInt( data.length );
+			central.putShort( (short)name.length ).putShort( (short)0 ).putShort( (short)0 ).putShort( (short)0 ).putShort( (short)0 ).putInt( 0 );
+			central.putInt( (int)manifestOffset ).put( name ).flip();
+			position += write( channel, central, position );
+			count++;
+
+			if( count > 0xffff || position > 0xffffffffL ) throw new ZipException( "Archive too large for manifest: " + archive );
+
+			byte[] comment = directory.getComment();
+			ByteBuffer end = ByteBuffer.allocate( ZipDirectory.END_SIZE + comment.length ).order( ByteOrder.LITTLE_ENDIAN );
+			end.putInt( ZipDirectory.END_SIGNATURE ).putShort( (short)0 ).putShort( (short)0 ).putShort( (short)count ).putShort( (short)count );
+			end.putInt( (int)(position - directoryOffset) ).putInt( (int)directoryOffset ).putShort( (short)comment.length ).put( comment ).flip();
+			position += write( channel, end, position );
+			channel.truncate( position );
+		} catch( IOException exception ) {
+			temp.delete();
+			throw exception;
+		}
+
+		Files.move( temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		Log.write( Log.TRACE, "Manifest stored: " + archive );
+	}
+
+	private static int write( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+		int length = buffer.remaining();
+		while( buffer.hasRemaining() ) {
+			position += channel.write( buffer, position );
+		}
+		return length;
+	}
+
+	static int toDosTime( long time ) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis( time );
+		int year = calendar.get( Calendar.YEAR );
+		if( year < 1980 ) return (1 << 21) | (1 << 16);
+		return (year - 1980) << 25 | (calendar.get( Calendar.MONTH ) + 1) << 21 | calendar.get( Calendar.DAY_OF_MONTH ) << 16 | calendar.get( Calendar.HOUR_OF_DAY ) << 11 | calendar.get( Calendar.MINUTE ) << 5 | calendar.get( Calendar.SECOND ) >> 1;
+	}
+
+	public static class Entry {
+
+		private String path;
+
+		private long size;
+
+		private String digest;
+
+		private int mode;
+
+		public Entry( String path, long size, String digest, int mode ) {
+			this.path = path;
+			this.size = size;
+			this.digest = digest;
+			this.mode = mode;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getDigest() {
+			return digest;
+		}
+
+		/**
+		 * Get the unix permission bits of the file.
+		 *
+		 * @return The permission bits or -1 if not known
+		 */
+		public int getMode() {
+			return mode;
+		}
+
+	}
+
+}
@@ -0,0 +1,11 @@
+package com.parallelsymmetry.updater;
+
+public enum UpdatePhase {
+
+	STAGE,
+
+	COMMIT,
+
+	REVERT
+
+}
@@ -0,0 +1,89 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Executes update tasks in order while the next task is prepared on a
+ * background thread. While a task stages and commits, the next task reads and
+ * validates its archives, so the time for the tasks is close to the time of
+ * the slower of the two stages instead of the sum of both.
+ */
+class UpdatePipeline implements AutoCloseable {
+
+	private List<UpdateTask> tasks;
+
+	private List<Future<?>> preparations;
+
+	private ExecutorService executor;
+
+	/**
+	 * Create a pipeline for the tasks and start to prepare the first task.
+	 *
+	 * @param tasks The update tasks
+	 */
+	public UpdatePipeline( List<UpdateTask> tasks ) {
+		this.tasks = tasks;
+		this.preparations = new ArrayList<>( tasks.size() );
+		for( int index = 0; index < tasks.size(); index++ ) {
+			preparations.add( null );
+		}
+		this.executor = Executors.newSingleThreadExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "Update prepare" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		prepare( 0 );
+	}
+
+	public int size() {
+		return tasks.size();
+	}
+
+	public UpdateTask getTask( int index ) {
+		return tasks.get( index );
+	}
+
+	/**
+	 * Execute a task. This waits for the task to be prepared, starts to prepare
+	 * the next task and then executes the task.
+	 *
+	 * @param index The task index
+	 */
+	public void execute( int index ) throws Throwable {
+		await( index );
+		prepare( index + 1 );
+		tasks.get( index ).execute();
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private void prepare( int index ) {
+		if( index >= tasks.size() || preparations.get( index ) != null ) return;
+		UpdateTask task = tasks.get( index );
+		preparations.set( index, executor.submit( () -> {
+			long start = System.nanoTime();
+			task.prepare();
+			Log.write( Log.DEBUG, "Prepared: ", task, " (", TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ), "ms)" );
+			return null;
+		} ) );
+	}
+
+	private void await( int index ) throws InterruptedException {
+		Future<?> preparation = preparations.get( index );
+		if( preparation == null ) return;
+		try {
+			preparation.get();
+		} catch( ExecutionException exception ) {
+			// The task repeats the work in execute and reports the failure there.
+			Log.write( Log.DEBUG, "Prepare failed: ", tasks.get( index ), " ", exception.getCause() );
+		}
+	}
+
+}
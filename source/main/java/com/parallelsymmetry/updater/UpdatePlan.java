@@ -0,0 +1,378 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * What an update of a target folder from an archive will do, worked out
+ * without changing the target. The plan follows the same rules as the file
+ * update task: files that match the archive manifest are left unchanged and
+ * every other file in the archive is written. Archives without a manifest
+ * rewrite every file.
+ */
+public class UpdatePlan {
+
+	private List<File> sources;
+
+	private File target;
+
+	private boolean swap;
+
+	private boolean prune;
+
+	private boolean verified;
+
+	private int added;
+
+	private int replaced;
+
+	private int unchanged;
+
+	private int removed;
+
+	private int folders;
+
+	private int linked;
+
+	private long readBytes;
+
+	private long writeBytes;
+
+	private long unchangedBytes;
+
+	private UpdatePlan( List<File> sources, File target, boolean swap, boolean prune ) {
+		this.sources = sources;
+		this.target = target;
+		this.swap = swap;
+		this.prune = prune;
+	}
+
+	/**
+	 * Create the plan for updating a target folder from an archive.
+	 *
+	 * @param source The update archive
+	 * @param target The target folder
+	 * @param swap True if the update uses a folder swap commit
+	 * @return The update plan
+	 */
+	public static UpdatePlan create( File source, File target, boolean swap ) throws IOException {
+		return create( List.of( source ), target, swap );
+	}
+
+	/**
+	 * Create the plan for updating a target folder from archives applied in
+	 * order. The archives are merged the same way the file update task merges
+	 * them, so each file is counted once.
+	 *
+	 * @param sources The update archives
+	 * @param target The target folder
+	 * @param swap True if the update uses a folder swap commit
+	 * @return The update plan
+	 */
+	public static UpdatePlan create( List<File> sources, File target, boolean swap ) throws IOException {
+		return create( sources, target, swap, false );
+	}
+
+	/**
+	 * Create the plan for updating a target folder from archives applied in
+	 * order, removing the files the update removes.
+	 *
+	 * @param sources The update archives
+	 * @param target The target folder
+	 * @param swap True if the update uses a folder swap commit
+	 * @param prune True if the update removes the files not in the archives
+	 * @return The update plan
+	 */
+	public static UpdatePlan create( List<File> sources, File target, boolean swap, boolean prune ) throws IOException {
+		UpdatePlan plan = new UpdatePlan( sources, target, swap, prune );
+		UpdateArchives archives = UpdateArchives.read( sources );
+		plan.verified = archives.isVerified();
+
+		BufferPool pool = BufferPool.get();
+		InstallIndex installed = InstallIndex.load( target );
+		Path root = target.toPath();
+		Set<Path> folders = new HashSet<>();
+		for( int index = 0; index < archives.size(); index++ ) {
+			for( ZipDirectory.Entry entry : archives.getDirectory( index ).getEntries() ) {
+				if( !archives.isFinal( index, entry ) ) continue;
+				String name = entry.getName();
+
+				Path file = UpdateArchives.resolve( root, name );
+				plan.addFolders( folders, entry.isDirectory() ? file : file.getParent() );
+				if( entry.isDirectory() ) continue;
+
+				UpdateManifest.Entry expected = archives.getExpected( index, name );
+				if( !Files.isRegularFile( file ) ) {
+					plan.added++;
+				} else if( expected != null && Files.size( file ) == expected.getSize() && expected.getDigest().equals( digest( installed, name, file, pool ) ) ) {
+					plan.unchanged++;
+					plan.unchangedBytes += entry.getSize();
+					continue;
+				} else {
+					plan.replaced++;
+				}
+				plan.readBytes += entry.getCompressedSize();
+				plan.writeBytes += entry.getSize();
+			}
+		}
+
+		plan.removed = archives.getRemovals( root, prune ).size();
+
+		// A swap links every installed file it does not replace or remove, unchanged files included.
+		if( swap ) {
+			try( Stream<Path> files = Files.walk( root ) ) {
+				plan.linked = (int)files.filter( Files::isRegularFile ).count() - plan.replaced - plan.removed;
+			}
+		}
+
+		return plan;
+	}
+
+	private void addFolders( Set<Path> created, Path folder ) {
+		while( folder != null && !created.contains( folder ) && !Files.isDirectory( folder ) ) {
+			created.add( folder );
+			folders++;
+			folder = folder.getParent();
+		}
+	}
+
+	public List<File> getSources() {
+		return sources;
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	public boolean isSwap() {
+		return swap;
+	}
+
+	public boolean isPrune() {
+		return prune;
+	}
+
+	/**
+	 * Check if the archive has a manifest. Only archives with a manifest can
+	 * leave unchanged files alone.
+	 */
+	public boolean isVerified() {
+		return verified;
+	}
+
+	public int getAdded() {
+		return added;
+	}
+
+	public int getReplaced() {
+		return replaced;
+	}
+
+	public int getUnchanged() {
+		return unchanged;
+	}
+
+	public int getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Get the number of folders the update creates.
+	 */
+	public int getFolders() {
+		return folders;
+	}
+
+	/**
+	 * Get the number of installed files a swap links into the new folder.
+	 */
+	public int getLinked() {
+		return linked;
+	}
+
+	/**
+	 * Get the number of compressed bytes read from the archive.
+	 */
+	public long getReadBytes() {
+		return readBytes;
+	}
+
+	/**
+	 * Get the number of bytes written to the target.
+	 */
+	public long getWriteBytes() {
+		return writeBytes;
+	}
+
+	public long getUnchangedBytes() {
+		return unchangedBytes;
+	}
+
+	/**
+	 * Get the number of files the update writes, renames or removes.
+	 */
+	public int getFileOperations() {
+		return added + replaced + removed + folders + linked;
+	}
+
+	/**
+	 * Estimate how long the update takes.
+	 *
+	 * @param sample The measured throughput of the target volume
+	 * @param throttle The I/O throttle the update will use
+	 * @return The estimated duration in milliseconds
+	 */
+	public long getEstimate( Sample sample, IoThrottle throttle ) {
+		double nanos = sample.getWriteNanos( writeBytes ) + (double)getFileOperations() * sample.getOperationNanos();
+
+		// A throttled update cannot go faster than the throttle allows.
+		if( throttle.getWriteRate() > 0 ) nanos = Math.max( nanos, (double)writeBytes * TimeUnit.SECONDS.toNanos( 1 ) / throttle.getWriteRate() );
+		if( throttle.getReadRate() > 0 ) nanos = Math.max( nanos, (double)readBytes * TimeUnit.SECONDS.toNanos( 1 ) / throttle.getReadRate() );
+
+		return TimeUnit.NANOSECONDS.toMillis( (long)nanos );
+	}
+
+	/**
+	 * Get the plan as lines of names and values.
+	 */
+	public List<String> describe() {
+		List<String> lines = new ArrayList<>();
+		for( File source : sources ) {
+			lines.add( "source: " + source );
+		}
+		lines.add( "target: " + target );
+		lines.add( "mode: " + (swap ? "swap" : "stage") );
+		lines.add( "verified: " + verified );
+		lines.add( "added: " + added );
+		lines.add( "replaced: " + replaced );
+		lines.add( "unchanged: " + unchanged );
+		lines.add( "removed: " + removed );
+		lines.add( "folders: " + folders );
+		if( swap ) lines.add( "linked: " + linked );
+		lines.add( "read.bytes: " + readBytes );
+		lines.add( "write.bytes: " + writeBytes );
+		return lines;
+	}
+
+	/**
+	 * Get the digest of an installed file from the install index or, when the
+	 * file changed since it was indexed, by reading the file.
+	 */
+	private static String digest( InstallIndex index, String name, Path file, BufferPool pool ) throws IOException {
+		String digest = index.getDigest( name, file );
+		return digest == null ? pool.digest( file, IoThrottle.NONE ) : digest;
+	}
+
+	/**
+	 * Measure the write throughput and the cost of a file operation on the
+	 * volume of a folder. Unlike the plan, measuring writes to the volume: a
+	 * sample file is written, synced and renamed a number of times in a
+	 * temporary folder beside the target folder, so the target itself is not
+	 * changed. The temporary folder is removed again before this returns.
+	 *
+	 * @param folder The target folder or a folder on the same volume
+	 * @return The measured sample
+	 */
+	public static Sample measure( File folder ) throws IOException {
+		Path path = folder.toPath().toAbsolutePath();
+		if( path.getParent() != null ) path = path.getParent();
+		while( !Files.isDirectory( path ) && path.getParent() != null ) {
+			path = path.getParent();
+		}
+
+		BufferPool pool = BufferPool.get();
+		Path sampleFolder = Files.createTempDirectory( path, ".updater" );
+		Path file = sampleFolder.resolve( "sample" );
+		Path renamed = sampleFolder.resolve( "sample.add" );
+		try {
+			long start = System.nanoTime();
+			try( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE ) ) {
+				for( int index = 0; index < Sample.BYTES / BufferPool.BUFFER_SIZE; index++ ) {
+					ByteBuffer buffer = pool.getOutput();
+					while( buffer.hasRemaining() ) {
+						channel.write( buffer );
+					}
+				}
+				channel.force( false );
+			}
+			long writeNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for( int index = 0; index < Sample.OPERATIONS; index++ ) {
+				Files.move( file, renamed, StandardCopyOption.ATOMIC_MOVE );
+				Files.move( renamed, file, StandardCopyOption.ATOMIC_MOVE );
+			}
+			long operationNanos = (System.nanoTime() - start) / (Sample.OPERATIONS * 2);
+
+			Sample sample = new Sample( path.toFile(), writeNanos, operationNanos );
+			Log.write( Log.DEBUG, "Measured: ", sample );
+			return sample;
+		} finally {
+			Files.deleteIfExists( file );
+			Files.deleteIfExists( renamed );
+			Files.deleteIfExists( sampleFolder );
+		}
+	}
+
+	/**
+	 * The measured throughput of a volume.
+	 */
+	public static class Sample {
+
+		static final int BYTES = 4 * 1024 * 1024;
+
+		static final int OPERATIONS = 32;
+
+		private File folder;
+
+		private long writeNanos;
+
+		private long operationNanos;
+
+		public Sample( File folder, long writeNanos, long operationNanos ) {
+			this.folder = folder;
+			this.writeNanos = Math.max( 1, writeNanos );
+			this.operationNanos = operationNanos;
+		}
+
+		public File getFolder() {
+			return folder;
+		}
+
+		/**
+		 * Get the measured write rate in bytes per second.
+		 */
+		public long getWriteRate() {
+			return BYTES * TimeUnit.SECONDS.toNanos( 1 ) / writeNanos;
+		}
+
+		public long getOperationNanos() {
+			return operationNanos;
+		}
+
+		double getWriteNanos( long bytes ) {
+			return (double)bytes * writeNanos / BYTES;
+		}
+
+		@Override
+		public String toString() {
+			return folder + " write.rate=" + getWriteRate() + " operation.nanos=" + operationNanos;
+		}
+
+	}
+
+}
@@ -1,9 +1,34 @@
 package com.parallelsymmetry.updater;
 
+import java.io.IOException;
+
 public interface UpdateTask {
 
 	boolean needsElevation();
 
+	/**
+	 * Get the number of bytes the task reports as progress, or zero if the task
+	 * does not report progress.
+	 */
+	default long getSize() throws IOException {
+		return 0;
+	}
+
+	/**
+	 * Do the work of the task that does not change anything, like reading and
+	 * validating the input. The task executor may call this on another thread
+	 * while the previous task executes. A task that fails to prepare is still
+	 * executed and is expected to fail in execute.
+	 */
+	default void prepare() throws Exception {}
+
 	void execute() throws Throwable;
 
+	/**
+	 * Do the work left after the task executed that does not have to finish
+	 * before the program is launched again, like removing backups. This is
+	 * called after the launch tasks.
+	 */
+	default void cleanup() throws Exception {}
+
 }
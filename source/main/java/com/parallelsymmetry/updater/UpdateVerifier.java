@@ -0,0 +1,321 @@
+package com.parallelsymmetry.updater;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Checks an installed target folder against the update archives it was
+ * installed from. Files listed in a manifest are compared by size and digest
+ * and other files by size and CRC. The files are checked in parallel on a
+ * fork/join pool, split by count and by size so that large files spread over
+ * the workers.
+ */
+public class UpdateVerifier {
+
+	private static final int SPLIT_COUNT = 64;
+
+	private static final long SPLIT_BYTES = 16L * 1024 * 1024;
+
+	private List<File> sources;
+
+	private File target;
+
+	private IoThrottle throttle = IoThrottle.NONE;
+
+	public UpdateVerifier( List<File> sources, File target ) {
+		this.sources = sources;
+		this.target = target;
+	}
+
+	public List<File> getSources() {
+		return sources;
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	public IoThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * Set the throttle that limits the bytes read while verifying.
+	 *
+	 * @param throttle The I/O throttle
+	 */
+	public void setThrottle( IoThrottle throttle ) {
+		this.throttle = throttle == null ? IoThrottle.NONE : throttle;
+	}
+
+	/**
+	 * Verify the target folder.
+	 *
+	 * @param pool The fork/join pool to verify the files on
+	 * @return The verify result
+	 */
+	public Result verify( ForkJoinPool pool ) throws IOException {
+		if( !target.isDirectory() ) throw new IOException( "Target must be a folder: " + target );
+
+		UpdateArchives archives = UpdateArchives.read( sources );
+		List<Item> items = new ArrayList<>();
+		for( int index = 0; index < archives.size(); index++ ) {
+			for( ZipDirectory.Entry entry : archives.getDirectory( index ).getEntries() ) {
+				if( archives.isFinal( index, entry ) ) items.add( new Item( entry, archives.getExpected( index, entry.getName() ) ) );
+			}
+		}
+
+		// Prefix sums of the sizes to split the items by bytes.
+		long[] offsets = new long[ items.size() + 1 ];
+		for( int index = 0; index < items.size(); index++ ) {
+			offsets[ index + 1 ] = offsets[ index ] + items.get( index ).entry.getSize();
+		}
+
+		Tally result = new Tally();
+		Set<String> names = new HashSet<>();
+		for( Item item : items ) {
+			names.add( trimSlash( item.entry.getName() ) );
+		}
+
+		try {
+			pool.invoke( new RecursiveAction() {
+
+				@Override
+				protected void compute() {
+					invokeAll( new Compare( archives, items, offsets, 0, items.size(), result ), new FindExtra( names, result ) );
+				}
+
+			} );
+		} catch( UncheckedIOException exception ) {
+			throw exception.getCause();
+		}
+
+		return new Result( result );
+	}
+
+	private String trimSlash( String name ) {
+		return name.endsWith( "/" ) ? name.substring( 0, name.length() - 1 ) : name;
+	}
+
+	private boolean isMatch( Item item, BufferPool pool ) throws IOException {
+		ZipDirectory.Entry entry = item.entry;
+		Path file = UpdateArchives.resolve( target.toPath(), entry.getName() );
+		if( entry.isDirectory() ) return Files.isDirectory( file );
+		if( Files.size( file ) != entry.getSize() ) return false;
+
+		if( item.expected != null ) return item.expected.getDigest().equals( pool.digest( file, throttle ) );
+		return crc( file, pool ) == entry.getCrc();
+	}
+
+	private long crc( Path file, BufferPool pool ) throws IOException {
+		CRC32 crc = pool.getCrc();
+		try( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+			ByteBuffer buffer = pool.getInput();
+			while( read( channel, buffer ) ) {
+				crc.update( buffer );
+				buffer.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+	private boolean read( FileChannel channel, ByteBuffer buffer ) throws IOException {
+		int count = channel.read( buffer );
+		if( count < 0 ) return false;
+		throttle.acquireRead( count );
+		buffer.flip();
+		return true;
+	}
+
+	private static class Item {
+
+		private ZipDirectory.Entry entry;
+
+		private UpdateManifest.Entry expected;
+
+		public Item( ZipDirectory.Entry entry, UpdateManifest.Entry expected ) {
+			this.entry = entry;
+			this.expected = expected;
+		}
+
+	}
+
+	private class Compare extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private UpdateArchives archives;
+
+		private List<Item> items;
+
+		private long[] offsets;
+
+		private int start;
+
+		private int end;
+
+		private Tally result;
+
+		public Compare( UpdateArchives archives, List<Item> items, long[] offsets, int start, int end, Tally result ) {
+			this.archives = archives;
+			this.items = items;
+			this.offsets = offsets;
+			this.start = start;
+			this.end = end;
+			this.result = result;
+		}
+
+		@Override
+		protected void compute() {
+			int count = end - start;
+			if( count > 1 && (count > SPLIT_COUNT || offsets[ end ] - offsets[ start ] > SPLIT_BYTES) ) {
+				int middle = start + count / 2;
+				invokeAll( new Compare( archives, items, offsets, start, middle, result ), new Compare( archives, items, offsets, middle, end, result ) );
+				return;
+			}
+
+			BufferPool pool = BufferPool.get();
+			for( int index = start; index < end; index++ ) {
+				Item item = items.get( index );
+				String name = item.entry.getName();
+				try {
+					if( !Files.exists( UpdateArchives.resolve( target.toPath(), name ) ) ) {
+						result.missing.add( name );
+					} else if( !isMatch( item, pool ) ) {
+						result.mismatched.add( name );
+					}
+					result.files.incrementAndGet();
+					result.bytes.addAndGet( item.entry.getSize() );
+				} catch( EOFException | NoSuchFileException exception ) {
+					result.missing.add( name );
+				} catch( IOException exception ) {
+					throw new UncheckedIOException( exception );
+				}
+			}
+		}
+
+	}
+
+	private class FindExtra extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Set<String> names;
+
+		private Tally result;
+
+		public FindExtra( Set<String> names, Tally result ) {
+			this.names = names;
+			this.result = result;
+		}
+
+		@Override
+		protected void compute() {
+			Path root = target.toPath();
+			try {
+				Files.walkFileTree( root, new SimpleFileVisitor<Path>() {
+
+					@Override
+					public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) {
+						String name = root.relativize( file ).toString().replace( File.separatorChar, '/' );
+						if( !names.contains( name ) ) result.extra.add( name );
+						return FileVisitResult.CONTINUE;
+					}
+
+				} );
+			} catch( IOException exception ) {
+				throw new UncheckedIOException( exception );
+			}
+		}
+
+	}
+
+	private static class Tally {
+
+		private Queue<String> missing = new ConcurrentLinkedQueue<>();
+
+		private Queue<String> extra = new ConcurrentLinkedQueue<>();
+
+		private Queue<String> mismatched = new ConcurrentLinkedQueue<>();
+
+		private AtomicLong files = new AtomicLong();
+
+		private AtomicLong bytes = new AtomicLong();
+
+	}
+
+	/**
+	 * The result of a verify. The lists hold the entry names relative to the
+	 * target folder.
+	 */
+	public static class Result {
+
+		private List<String> missing;
+
+		private List<String> extra;
+
+		private List<String> mismatched;
+
+		private long files;
+
+		private long bytes;
+
+		private Result( Tally tally ) {
+			missing = sorted( tally.missing );
+			extra = sorted( tally.extra );
+			mismatched = sorted( tally.mismatched );
+			files = tally.files.get();
+			bytes = tally.bytes.get();
+		}
+
+		public List<String> getMissing() {
+			return missing;
+		}
+
+		public List<String> getExtra() {
+			return extra;
+		}
+
+		public List<String> getMismatched() {
+			return mismatched;
+		}
+
+		/**
+		 * Get the number of archive entries checked.
+		 */
+		public long getFiles() {
+			return files;
+		}
+
+		/**
+		 * Get the number of bytes in the archive entries checked.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		public boolean isValid() {
+			return missing.isEmpty() && extra.isEmpty() && mismatched.isEmpty();
+		}
+
+		private static List<String> sorted( Collection<String> values ) {
+			List<String> list = new ArrayList<>( values );
+			Collections.sort( list );
+			return Collections.unmodifiableList( list );
+		}
+
+	}
+
+}
@@ -6,7 +6,6 @@ import com.parallelsymmetry.utility.log.Log;
 import com.parallelsymmetry.utility.log.LogFlag;
 import com.parallelsymmetry.utility.product.Product;
 import com.parallelsymmetry.utility.product.ProductCard;
-import com.parallelsymmetry.utility.ui.SwingUtil;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -17,17 +16,25 @@ import java.lang.management.RuntimeMXBean;
 import java.net.*;
 import java.nio.charset.Charset;
 import java.security.InvalidParameterException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.FileHandler;
+import java.util.logging.Level;
 
 /**
  * The Updater class is the entry point for the Updater application.
  * <p>
  * The updater does not need to be started as an elevated process. If there is a
  * need to have elevated privileges to perform any update tasks a new process
- * will be started with elevated privileges to perform those updates.
+ * will be started with elevated privileges to perform those updates. The
+ * updates that do not need elevated privileges run in this process at the
+ * same time.
  *
  * @author SoderquistMV
  */
@@ -38,10 +45,16 @@ public final class Updater implements Product {
 
 	private static final int CALLBACK_TIMEOUT = 200;
 
-	private static final String UPDATE = "update";
+	private static final String PROGRESS = "progress";
+
+	private static final int PROGRESS_MAX = 1000;
+
+	private static final long PROGRESS_INTERVAL = 250;
 
 	private static final String DONE = "done";
 
+	private static final String METRICS = "metrics";
+
 	private static final String LOG_EXTENSION = ".log";
 
 	private static final String ELEV_EXTENSION = ".elev";
@@ -52,18 +65,32 @@ public final class Updater implements Product {
 
 	private String logFilePattern;
 
+	private AsyncLogHandler logHandler;
+
 	private List<UpdateTask> updateTasks;
 
-	private List<LaunchTask> launchTasks;
+	private List<UpdateTask> elevatedTasks;
 
-	private boolean needsElevation;
+	private List<LaunchTask> launchTasks;
 
 	private ServerSocket server;
 
-	private UpdaterWindow window;
+	private volatile boolean elevatedFinished;
+
+	private List<RunMetrics> elevatedRuns = Collections.synchronizedList( new ArrayList<>() );
+
+	private UpdaterView window;
 
 	private int callbackPort = -1;
 
+	private long progressTotal;
+
+	private long progressDone;
+
+	private long elevatedDone;
+
+	private long progressTime;
+
 	public Updater() {
 		describe();
 	}
@@ -108,18 +135,22 @@ public final class Updater implements Product {
 					logFilePattern = pattern.toString();
 
 					FileHandler handler = new FileHandler( logFilePattern, parameters.isTrue( LogFlag.LOG_FILE_APPEND ) );
-					handler.setLevel( Log.INFO );
-					if( parameters.isSet( LogFlag.LOG_FILE_LEVEL ) ) handler.setLevel( Log.parseLevel( parameters.get( LogFlag.LOG_FILE_LEVEL ) ) );
+					handler.setLevel( getFileLevel() );
 
 					DefaultFormatter formatter = new DefaultFormatter();
 					formatter.setShowDate( true );
 					handler.setFormatter( formatter );
-					Log.addHandler( handler );
+
+					// Write the log file on a background thread so logging does not slow the update.
+					logHandler = new AsyncLogHandler( handler );
+					Log.addHandler( logHandler );
 				} catch( IOException exception ) {
 					Log.write( exception );
 				}
 			}
 
+			configureLogLevel();
+
 			describe();
 
 			printHeader();
@@ -133,6 +164,15 @@ public final class Updater implements Product {
 				} else if( parameters.isTrue( UpdaterFlag.VERSION ) ) {
 					printVersion();
 					return;
+				} else if( parameters.isSet( UpdaterFlag.MANIFEST ) ) {
+					createManifests();
+					return;
+				} else if( parameters.isSet( UpdaterFlag.VERIFY ) ) {
+					verify();
+					return;
+				} else if( parameters.isTrue( UpdaterFlag.STATS ) ) {
+					printStats();
+					return;
 				}
 			}
 
@@ -149,6 +189,7 @@ public final class Updater implements Product {
 			updateTasks = new ArrayList<UpdateTask>();
 			if( parameters.isSet( UpdaterFlag.UPDATE ) ) {
 				List<String> files = parameters.getValues( UpdaterFlag.UPDATE );
+				UpdateJob.Builder builder = UpdateJob.builder();
 
 				try {
 					int index = 0;
@@ -156,6 +197,16 @@ public final class Updater implements Product {
 
 					if( count == 0 || "true".equals( parameters.get( UpdaterFlag.UPDATE ) ) ) throw new IllegalArgumentException( "No update files specified." );
 
+					builder.swap( parameters.isTrue( UpdaterFlag.UPDATE_SWAP ) );
+					builder.deferCleanup( parameters.isTrue( UpdaterFlag.UPDATE_DEFER_CLEANUP ) );
+					builder.prune( parameters.isTrue( UpdaterFlag.UPDATE_PRUNE ) );
+					builder.sequential( parameters.isTrue( UpdaterFlag.IO_SEQUENTIAL ) );
+					if( parameters.isSet( UpdaterFlag.UPDATE_STORE ) ) builder.store( new File( parameters.get( UpdaterFlag.UPDATE_STORE ) ).getCanonicalFile() );
+					if( parameters.isSet( UpdaterFlag.UPDATE_LOCK_TIMEOUT ) ) builder.lockTimeout( Long.parseLong( parameters.get( UpdaterFlag.UPDATE_LOCK_TIMEOUT ) ) );
+					if( parameters.isSet( UpdaterFlag.UPDATE_RETRIES ) ) builder.retryPolicy( new RetryPolicy( Integer.parseInt( parameters.get( UpdaterFlag.UPDATE_RETRIES ) ), RetryPolicy.DEFAULT_DELAY, RetryPolicy.DEFAULT_MAX_DELAY ) );
+					builder.throttle( createThrottle() );
+					builder.listener( new ProgressListener() );
+
 					while( index < count ) {
 						String source = null;
 						String target = null;
@@ -163,16 +214,36 @@ public final class Updater implements Product {
 						if( index + 1 < count ) target = files.get( index + 1 );
 						if( source == null ) throw new IllegalArgumentException( "Source parameter not specified." );
 						if( target == null ) throw new IllegalArgumentException( "Target parameter not specified." );
-						FileUpdateTask task = new FileUpdateTask( new File( source ).getCanonicalFile(), new File( target ).getCanonicalFile() );
-						updateTasks.add( task );
-						needsElevation |= task.needsElevation();
 						index += 2;
+
+						// Consecutive updates of the same target are merged into one task.
+						builder.update( new File( source ).getCanonicalFile(), new File( target ).getCanonicalFile() );
 					}
 				} catch( RuntimeException exception ) {
 					Log.write( exception );
 				}
+
+				updateTasks.addAll( builder.build().getUpdateTasks() );
+			}
+
+			if( !isElevated && parameters.isSet( UpdaterFlag.PLAN ) ) {
+				printPlan();
+				return;
+			}
+
+			// Only the file updates that need elevation are sent to an elevated
+			// updater, other tasks cannot be passed on the command line.
+			elevatedTasks = new ArrayList<UpdateTask>();
+			if( !isElevated ) {
+				for( UpdateTask task : updateTasks ) {
+					if( task instanceof FileUpdateTask && task.needsElevation() ) elevatedTasks.add( task );
+				}
+				updateTasks.removeAll( elevatedTasks );
 			}
 
+			// Updates of several targets from the same archives read the archives once.
+			if( parameters.isTrue( UpdaterFlag.UPDATE_FAN_OUT ) ) updateTasks = FanOutUpdateTask.group( updateTasks );
+
 			if( !isElevated ) {
 				launchTasks = new ArrayList<LaunchTask>();
 				if( parameters.isSet( UpdaterFlag.LAUNCH ) ) {
@@ -183,25 +254,64 @@ public final class Updater implements Product {
 			}
 
 			if( parameters.isSet( UpdaterFlag.UI ) ) {
-				window = new UpdaterWindow();
-				window.setTitle( card.getName() );
-				window.setStep( "Initializing..." );
-				window.setTask( "Initializing..." );
+				window = loadView();
+				if( window != null ) {
+					window.setTitle( card.getName() );
+					window.setStep( "Initializing..." );
+					window.setTask( "Initializing..." );
+				}
 			}
 
 			process();
 		} catch( Throwable throwable ) {
 			Log.write( throwable );
+		} finally {
+			closeLogHandler();
+		}
+	}
+
+	private Level getFileLevel() {
+		return parameters.isSet( LogFlag.LOG_FILE_LEVEL ) ? Log.parseLevel( parameters.get( LogFlag.LOG_FILE_LEVEL ) ) : Log.INFO;
+	}
+
+	/**
+	 * Set the update log threshold to the lowest level written to the console or
+	 * the log file so the update tasks do not build messages nobody writes.
+	 */
+	private void configureLogLevel() {
+		Level level = parameters.isSet( LogFlag.LOG_LEVEL ) ? Log.parseLevel( parameters.get( LogFlag.LOG_LEVEL ) ) : Log.INFO;
+		Level fileLevel = getFileLevel();
+		if( fileLevel.intValue() < level.intValue() ) level = fileLevel;
+		UpdateLog.setLevel( level );
+	}
+
+	private void closeLogHandler() {
+		if( logHandler == null ) return;
+		Log.removeHandler( logHandler );
+		logHandler.close();
+		logHandler = null;
+	}
+
+	/**
+	 * Load the updater view. The updater continues without a view if one cannot
+	 * be loaded, for example on a headless display.
+	 */
+	private UpdaterView loadView() {
+		try {
+			Optional<UpdaterView> view = ServiceLoader.load( UpdaterView.class ).findFirst();
+			if( view.isPresent() ) return view.get();
+			Log.write( Log.WARN, "No updater view available" );
+		} catch( ServiceConfigurationError | LinkageError | RuntimeException exception ) {
+			Log.write( Log.WARN, "Could not load updater view: ", exception.getMessage() );
 		}
+		return null;
 	}
 
 	private void showWindow() {
 		if( window == null ) return;
-		window.setProgressMax( updateTasks.size() );
-		window.pack();
-		SwingUtil.center( window );
-		window.setVisible( true );
-		window.requestFocus();
+		progressTotal = getSize( updateTasks ) + getSize( elevatedTasks );
+		window.setProgressMax( PROGRESS_MAX );
+		window.open();
 	}
 
 	public void setStep( String step ) {
@@ -212,23 +322,61 @@ public final class Updater implements Product {
 		if( window != null ) window.setProgress( window.getProgress() + 1 );
 	}
 
+	/**
+	 * Set the number of update bytes processed in this updater. The window shows
+	 * the bytes processed here and in the elevated updater against the total
+	 * size of the update tasks and an elevated updater passes the bytes on to
+	 * the parent updater.
+	 */
+	private synchronized void setProgress( long bytes, boolean force ) {
+		progressDone = bytes;
+		showProgress( force );
+	}
+
+	private synchronized void addProgress( long bytes ) {
+		setProgress( progressDone + bytes, false );
+	}
+
+	/**
+	 * Set the number of update bytes processed in the elevated updater.
+	 */
+	private synchronized void setElevatedProgress( long bytes ) {
+		elevatedDone = bytes;
+		showProgress( false );
+	}
+
+	private void showProgress( boolean force ) {
+		long bytes = progressDone + elevatedDone;
+		if( window != null && progressTotal > 0 ) window.setProgress( (int)Math.min( PROGRESS_MAX, bytes * PROGRESS_MAX / progressTotal ) );
+
+		long time = System.currentTimeMillis();
+		if( callbackPort > 0 && (force || time - progressTime >= PROGRESS_INTERVAL) ) {
+			progressTime = time;
+			callback( PROGRESS + " " + bytes );
+		}
+	}
+
 	public void setTask( String task ) {
 		if( window != null ) window.setTask( task );
 	}
 
 	private void hideWindow() {
 		if( window == null ) return;
-		window.dispose();
+		window.close();
 	}
 
 	private void process() {
+		Future<?> cleanup = null;
 		try {
-			if( needsElevation ) {
-				// Launch an elevated updater.
+			if( elevatedTasks.size() > 0 ) {
+				// Launch an elevated updater, collecting its progress on another
+				// thread, and run the other update tasks after it finishes.
 				int port = setupForCallback();
-				updateElevated( port );
+				Process process = updateElevated( port );
 				showWindow();
-				waitForCallback( port );
+				waitForElevated( process, startCallbacks( process ) );
+				recordElevatedMetrics();
+				runUpdateTasks();
 			} else {
 				// Run the update tasks.
 				showWindow();
@@ -236,14 +384,20 @@ public final class Updater implements Product {
 				ThreadUtil.pause( 500 );
 			}
 
+			// The update is reported done, remove the backups in the background.
+			// An elevated updater cleans up after the update tasks it runs.
+			cleanup = startCleanupTasks();
+
 			// Run the launch tasks.
 			runLaunchTasks();
 		} finally {
 			hideWindow();
 		}
+
+		waitForCleanup( cleanup );
 	}
 
-	private void updateElevated( int port ) {
+	private Process updateElevated( int port ) {
 		// Use current command parameters to start an elevated process.
 		ProcessBuilder builder = new ProcessBuilder( OperatingSystem.getJavaExecutablePath() );
 		builder.directory( new File( System.getProperty( "user.dir" ) ) );
@@ -251,12 +405,25 @@ public final class Updater implements Product {
 		// Add the VM parameters to the commands.
 		RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
 		for( String command : runtimeBean.getInputArguments() ) {
+			if( command.startsWith( "-Djdk.module." ) ) continue;
 			if( !builder.command().contains( command ) ) builder.command().add( command );
 		}
 
-		// Add the classpath information.
-		builder.command().add( "-jar" );
-		builder.command().add( runtimeBean.getClassPath() );
+		// Add the classpath information, or the main module when the updater
+		// runs as a module.
+		Module module = Updater.class.getModule();
+		if( module.isNamed() ) {
+			String modulePath = System.getProperty( "jdk.module.path" );
+			if( modulePath != null ) {
+				builder.command().add( "--module-path" );
+				builder.command().add( modulePath );
+			}
+			builder.command().add( "-m" );
+			builder.command().add( module.getName() + "/" + Updater.class.getName() );
+		} else {
+			builder.command().add( "-jar" );
+			builder.command().add( runtimeBean.getClassPath() );
+		}
 
 		// Set the log file.
 		builder.command().add( LogFlag.LOG_FILE );
@@ -266,28 +433,78 @@ public final class Updater implements Product {
 		builder.command().add( UpdaterFlag.CALLBACK );
 		builder.command().add( String.valueOf( port ) );
 
-		// Add the update delay flag.
-		if( parameters.isSet( UpdaterFlag.UPDATE_DELAY ) ) {
-			builder.command().add( UpdaterFlag.UPDATE_DELAY );
-			builder.command().add( parameters.get( UpdaterFlag.UPDATE_DELAY ) );
-		}
-
-		// Add the updates.
+		// Add the update option flags.
+		addFlag( builder.command(), UpdaterFlag.UPDATE_DELAY );
+		addFlag( builder.command(), UpdaterFlag.UPDATE_SWAP );
+		addFlag( builder.command(), UpdaterFlag.UPDATE_FAN_OUT );
+		addFlag( builder.command(), UpdaterFlag.UPDATE_DEFER_CLEANUP );
+		addFlag( builder.command(), UpdaterFlag.UPDATE_PRUNE );
+		addFlag( builder.command(), UpdaterFlag.UPDATE_STORE );
+		addFlag( builder.command(), UpdaterFlag.UPDATE_LOCK_TIMEOUT );
+		addFlag( builder.command(), UpdaterFlag.UPDATE_RETRIES );
+		addFlag( builder.command(), UpdaterFlag.IO_READ_RATE );
+		addFlag( builder.command(), UpdaterFlag.IO_WRITE_RATE );
+		addFlag( builder.command(), UpdaterFlag.IO_ADAPTIVE );
+		addFlag( builder.command(), UpdaterFlag.IO_SEQUENTIAL );
+
+		// Add the updates that need elevation.
 		builder.command().add( UpdaterFlag.UPDATE );
-		for( String value : parameters.getValues( UpdaterFlag.UPDATE ) ) {
-			builder.command().add( value );
+		for( UpdateTask task : elevatedTasks ) {
+			if( !(task instanceof FileUpdateTask) ) continue;
+			FileUpdateTask fileTask = (FileUpdateTask)task;
+			for( File source : fileTask.getSources() ) {
+				builder.command().add( source.getPath() );
+				builder.command().add( fileTask.getTarget().getPath() );
+			}
 		}
 
 		try {
 			OperatingSystem.elevateProcessBuilder( getCard().getName(), builder );
 			Log.write( Log.INFO, "Elevated update: " + TextUtil.toString( builder.command(), " " ) );
-			Process process = builder.start();
-			process.waitFor();
+			return builder.start();
+		} catch( IOException exception ) {
+			Log.write( exception );
+			return null;
+		}
+	}
+
+	/**
+	 * Wait for the elevated updater to finish its update tasks. The elevated
+	 * updater reports done before it removes its backups, so the launch tasks
+	 * run while it cleans up. If the callbacks end without done, for example
+	 * because the callback failed, wait for the elevated updater to exit.
+	 */
+	void waitForElevated( Process process, Thread callbacks ) {
+		if( process == null ) return;
+		try {
+			callbacks.join();
+			if( !elevatedFinished ) process.waitFor();
 			Log.write( Log.INFO, "Elevated update complete." );
 		} catch( InterruptedException exception ) {
 			Log.write( exception );
-		} catch( IOException exception ) {
+		}
+	}
+
+	private void addFlag( List<String> command, String flag ) {
+		if( !parameters.isSet( flag ) ) return;
+		command.add( flag );
+		String value = parameters.get( flag );
+		if( !"true".equals( value ) ) command.add( value );
+	}
+
+	private IoThrottle createThrottle() {
+		try {
+			long readRate = parameters.isSet( UpdaterFlag.IO_READ_RATE ) ? IoThrottle.parseRate( parameters.get( UpdaterFlag.IO_READ_RATE ) ) : 0;
+			long writeRate = parameters.isSet( UpdaterFlag.IO_WRITE_RATE ) ? IoThrottle.parseRate( parameters.get( UpdaterFlag.IO_WRITE_RATE ) ) : 0;
+			if( readRate <= 0 && writeRate <= 0 ) return IoThrottle.NONE;
+
+			IoThrottle throttle = new IoThrottle( readRate, writeRate );
+			throttle.setAdaptive( parameters.isTrue( UpdaterFlag.IO_ADAPTIVE ) );
+			Log.write( Log.INFO, "I/O rate limit: read=", readRate, " write=", writeRate, " adaptive=", throttle.isAdaptive() );
+			return throttle;
+		} catch( NumberFormatException exception ) {
 			Log.write( exception );
+			return IoThrottle.NONE;
 		}
 	}
 
@@ -305,7 +522,7 @@ public final class Updater implements Product {
 		return new File( folder, name ).getAbsolutePath();
 	}
 
-	private int setupForCallback() {
+	int setupForCallback() {
 		try {
 			server = new ServerSocket( 0, 1, InetAddress.getByName( "127.0.0.1" ) );
 			server.setSoTimeout( ACCEPT_TIMEOUT );
@@ -318,7 +535,22 @@ public final class Updater implements Product {
 		return port;
 	}
 
-	private void waitForCallback( int port ) {
+	/**
+	 * Read the callbacks of the elevated updater on a new thread.
+	 */
+	Thread startCallbacks( Process process ) {
+		Thread callbacks = new Thread( () -> waitForCallback( process ), "Elevated callback" );
+		callbacks.setDaemon( true );
+		callbacks.start();
+		return callbacks;
+	}
+
+	/**
+	 * Read the callbacks of the elevated updater until it is done or exits.
+	 */
+	private void waitForCallback( Process process ) {
+		if( process == null ) return;
+
 		Socket socket = null;
 		String message = null;
 
@@ -331,12 +563,31 @@ public final class Updater implements Product {
 				BufferedReader reader = new BufferedReader( new InputStreamReader( socket.getInputStream(), TextUtil.DEFAULT_CHARSET ) );
 				message = reader.readLine();
 
-				if( UPDATE.equals( message ) ) incrementProgress();
+				if( message != null && message.startsWith( PROGRESS + " " ) ) setElevatedProgress( Long.parseLong( message.substring( PROGRESS.length() + 1 ) ) );
+				if( message != null && message.startsWith( METRICS + " " ) ) addElevatedRun( message.substring( METRICS.length() + 1 ) );
+			} catch( SocketTimeoutException exception ) {
+				if( !process.isAlive() ) return;
 			} catch( IOException exception ) {
 				Log.write( exception );
 				return;
 			}
 		}
+		elevatedFinished = true;
+	}
+
+	/**
+	 * Get the update runs the elevated updater reported.
+	 */
+	List<RunMetrics> getElevatedRuns() {
+		return Collections.unmodifiableList( elevatedRuns );
+	}
+
+	private void addElevatedRun( String line ) {
+		try {
+			elevatedRuns.add( RunMetrics.parse( line ) );
+		} catch( RuntimeException exception ) {
+			Log.write( Log.WARN, "Invalid elevated metrics: ", line );
+		}
 	}
 
 	private void callback( String message ) {
@@ -372,38 +623,101 @@ public final class Updater implements Product {
 
 		setStep( "Running update tasks..." );
 
-		// Pause if an update delay is set.
-		if( parameters.isSet( UpdaterFlag.UPDATE_DELAY ) ) {
-			String delayValue = parameters.get( UpdaterFlag.UPDATE_DELAY );
-			setTask( "Update waiting " + delayValue + "ms" );
-			Log.write( "Update delay: ", delayValue, "ms" );
-			try {
-				setTask( "Waiting for program to stop..." );
-				ThreadUtil.pause( Long.parseLong( delayValue ) );
-			} catch( NumberFormatException exception ) {
-				Log.write( exception );
+		// The first task is prepared while the updater waits for the update delay.
+		try( UpdatePipeline pipeline = new UpdatePipeline( updateTasks ) ) {
+			// Pause if an update delay is set. The elevated updater already waited.
+			if( elevatedTasks.size() == 0 && parameters.isSet( UpdaterFlag.UPDATE_DELAY ) ) {
+				String delayValue = parameters.get( UpdaterFlag.UPDATE_DELAY );
+				setTask( "Update waiting " + delayValue + "ms" );
+				Log.write( "Update delay: ", delayValue, "ms" );
+				try {
+					setTask( "Waiting for program to stop..." );
+					ThreadUtil.pause( Long.parseLong( delayValue ) );
+				} catch( NumberFormatException exception ) {
+					Log.write( exception );
+				}
 			}
-		}
 
-		if( parameters.isSet( UpdaterFlag.UI_MESSAGE ) ) setStep( parameters.get( UpdaterFlag.UI_MESSAGE ) );
+			if( parameters.isSet( UpdaterFlag.UI_MESSAGE ) ) setStep( parameters.get( UpdaterFlag.UI_MESSAGE ) );
 
-		// Execute the update tasks.
-		for( UpdateTask task : updateTasks ) {
-			try {
-				setTask( task.toString() );
-				task.execute();
-				incrementProgress();
-				callback( UPDATE );
-			} catch( Throwable throwable ) {
-				Log.write( throwable );
+			// Execute the update tasks.
+			MetricsHistory history = MetricsHistory.load( getDataFolder() );
+			long done = 0;
+			for( int index = 0; index < pipeline.size(); index++ ) {
+				UpdateTask task = pipeline.getTask( index );
+				try {
+					setTask( task.toString() );
+					pipeline.execute( index );
+					recordMetrics( history, task );
+				} catch( Throwable throwable ) {
+					Log.write( throwable );
+				}
+				done += getSize( List.of( task ) );
+				setProgress( done, true );
 			}
+
+			saveMetrics( history );
 		}
 
 		callback( DONE );
 	}
 
+	/**
+	 * Add the metrics of a successful update to the history. An elevated
+	 * updater sends the metrics to the updater that launched it instead, so
+	 * they are kept in the history of the user that runs the updates.
+	 */
+	private void recordMetrics( MetricsHistory history, UpdateTask task ) {
+		List<FileUpdateTask> tasks = new ArrayList<>();
+		if( task instanceof FileUpdateTask ) tasks.add( (FileUpdateTask)task );
+		if( task instanceof FanOutUpdateTask ) tasks.addAll( ((FanOutUpdateTask)task).getTasks() );
+
+		for( FileUpdateTask fileTask : tasks ) {
+			RunMetrics run = fileTask.getMetrics();
+			if( callbackPort > 0 ) {
+				callback( METRICS + " " + run.toLine() );
+			} else {
+				recordRun( history, run );
+			}
+		}
+	}
+
+	/**
+	 * Add the metrics the elevated updater sent to the history.
+	 */
+	private void recordElevatedMetrics() {
+		if( elevatedRuns.isEmpty() ) return;
+		MetricsHistory history = MetricsHistory.load( getDataFolder() );
+		for( RunMetrics run : elevatedRuns ) {
+			recordRun( history, run );
+		}
+		saveMetrics( history );
+	}
+
+	/**
+	 * Add a run to the history and report the update if it was significantly
+	 * slower than the recent updates of the same target.
+	 */
+	private void recordRun( MetricsHistory history, RunMetrics run ) {
+		history.add( run );
+		Log.write( Log.DEBUG, "Metrics: ", run, " stage=", run.getStageTime(), "ms commit=", run.getCommitTime(), "ms" );
+
+		String slowdown = history.checkSlowdown( run );
+		if( slowdown == null ) return;
+		Log.write( Log.WARN, "Update slower than usual: ", run.getTarget(), " ", slowdown );
+		setTask( "Update slower than usual: " + run.getTarget().getName() );
+	}
+
+	private void saveMetrics( MetricsHistory history ) {
+		try {
+			history.save();
+		} catch( IOException exception ) {
+			Log.write( Log.WARN, "Could not save metrics: ", history.getFile(), " ", exception.getMessage() );
+		}
+	}
+
 	private void runLaunchTasks() {
-		if( launchTasks.size() == 0 ) return;
+		if( launchTasks == null || launchTasks.size() == 0 ) return;
 
 		setStep( "Running launch tasks..." );
 
@@ -430,6 +744,270 @@ public final class Updater implements Product {
 		}
 	}
 
+	/**
+	 * Start the cleanup of the update tasks on a low priority background
+	 * thread, so removing old files does not keep the program down while the
+	 * launch tasks run.
+	 *
+	 * @return The cleanup, or null if there is nothing to clean up
+	 */
+	private Future<?> startCleanupTasks() {
+		if( updateTasks == null || updateTasks.size() == 0 ) return null;
+
+		ExecutorService executor = Executors.newSingleThreadExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "Update cleanup" );
+			thread.setPriority( Thread.MIN_PRIORITY );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		try {
+			return executor.submit( this::runCleanupTasks );
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Wait for the cleanup to finish before the updater exits. A deferred
+	 * cleanup that is cut short is finished by the next update of the target.
+	 */
+	private void waitForCleanup( Future<?> cleanup ) {
+		if( cleanup == null ) return;
+		try {
+			cleanup.get();
+		} catch( InterruptedException | ExecutionException exception ) {
+			Log.write( exception );
+		}
+	}
+
+	private void runCleanupTasks() {
+		for( UpdateTask task : updateTasks ) {
+			try {
+				task.cleanup();
+			} catch( Throwable throwable ) {
+				Log.write( throwable );
+			}
+		}
+
+		// Remove the stored files the update left unused.
+		if( parameters.isSet( UpdaterFlag.UPDATE_STORE ) ) {
+			try {
+				new BlobStore( new File( parameters.get( UpdaterFlag.UPDATE_STORE ) ) ).collect();
+			} catch( IOException exception ) {
+				Log.write( exception );
+			}
+		}
+	}
+
+	/**
+	 * Get the total size of the update tasks. The archives of the tasks are
+	 * read in parallel and the tasks keep them for the update.
+	 */
+	private long getSize( List<UpdateTask> tasks ) {
+		return tasks.parallelStream().mapToLong( task -> {
+			try {
+				return task.getSize();
+			} catch( IOException exception ) {
+				Log.write( exception );
+				return 0;
+			}
+		} ).sum();
+	}
+
+	/**
+	 * Print what the update tasks will do without changing anything. The tasks
+	 * are analyzed in parallel and the estimate is calibrated with a throughput
+	 * sample of each target volume.
+	 */
+	private void printPlan() {
+		List<FileUpdateTask> tasks = new ArrayList<>();
+		for( UpdateTask task : updateTasks ) {
+			if( task instanceof FileUpdateTask ) tasks.add( (FileUpdateTask)task );
+		}
+		if( tasks.size() == 0 ) return;
+
+		ExecutorService executor = Executors.newFixedThreadPool( Math.min( tasks.size(), Runtime.getRuntime().availableProcessors() ) );
+		List<Future<UpdatePlan>> futures = new ArrayList<>();
+		try {
+			for( FileUpdateTask task : tasks ) {
+				futures.add( executor.submit( () -> UpdatePlan.create( task.getSources(), task.getTarget(), task.isSwap(), task.isPrune() ) ) );
+			}
+
+			IoThrottle throttle = tasks.get( 0 ).getThrottle();
+			Map<FileStore, UpdatePlan.Sample> samples = new HashMap<>();
+			long files = 0;
+			long bytes = 0;
+			long estimate = 0;
+			boolean estimated = true;
+			for( Future<UpdatePlan> future : futures ) {
+				UpdatePlan plan;
+				try {
+					plan = future.get();
+				} catch( ExecutionException exception ) {
+					Log.write( exception.getCause() );
+					estimated = false;
+					continue;
+				}
+
+				Log.write( Log.HELP, "Plan:" );
+				for( String line : plan.describe() ) {
+					Log.write( Log.HELP, "  ", line );
+				}
+
+				UpdatePlan.Sample sample = getSample( samples, plan.getTarget() );
+				if( sample == null ) {
+					estimated = false;
+					Log.write( Log.HELP, "  estimate: unknown" );
+				} else {
+					long millis = plan.getEstimate( sample, throttle );
+					estimate += millis;
+					Log.write( Log.HELP, "  estimate.ms: ", millis );
+				}
+				files += plan.getFileOperations();
+				bytes += plan.getWriteBytes();
+			}
+
+			Log.write( Log.HELP, "Total:" );
+			Log.write( Log.HELP, "  files: ", files );
+			Log.write( Log.HELP, "  write.bytes: ", bytes );
+			Log.write( Log.HELP, "  estimate.ms: ", estimated ? String.valueOf( estimate ) : "unknown" );
+		} catch( InterruptedException exception ) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private UpdatePlan.Sample getSample( Map<FileStore, UpdatePlan.Sample> samples, File target ) {
+		try {
+			FileStore store = Files.getFileStore( target.toPath() );
+			UpdatePlan.Sample sample = samples.get( store );
+			if( sample == null ) {
+				sample = UpdatePlan.measure( target );
+				samples.put( store, sample );
+			}
+			return sample;
+		} catch( IOException exception ) {
+			Log.write( Log.WARN, "Could not measure throughput: ", target, " ", exception.getMessage() );
+			return null;
+		}
+	}
+
+	/**
+	 * Verify installed target folders against the archives they were installed
+	 * from. Consecutive archives for the same target are verified together the
+	 * same way they are applied by an update.
+	 */
+	private void verify() {
+		List<String> files = parameters.getValues( UpdaterFlag.VERIFY );
+		List<UpdateVerifier> verifiers = new ArrayList<>();
+		try {
+			if( files.size() == 0 || files.size() % 2 != 0 ) throw new IllegalArgumentException( "Verify files must be in pairs of archive and target." );
+			for( int index = 0; index < files.size(); index += 2 ) {
+				File source = new File( files.get( index ) ).getCanonicalFile();
+				File target = new File( files.get( index + 1 ) ).getCanonicalFile();
+				UpdateVerifier last = verifiers.isEmpty() ? null : verifiers.get( verifiers.size() - 1 );
+				if( last != null && last.getTarget().equals( target ) ) {
+					last.getSources().add( source );
+				} else {
+					verifiers.add( new UpdateVerifier( new ArrayList<>( List.of( source ) ), target ) );
+				}
+			}
+		} catch( IOException | RuntimeException exception ) {
+			Log.write( exception );
+			return;
+		}
+
+		IoThrottle throttle = createThrottle();
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			for( UpdateVerifier verifier : verifiers ) {
+				verifier.setThrottle( throttle );
+				long start = System.currentTimeMillis();
+				UpdateVerifier.Result result = verifier.verify( pool );
+
+				Log.write( Log.HELP, "Verify:" );
+				for( File source : verifier.getSources() ) {
+					Log.write( Log.HELP, "  source: ", source );
+				}
+				Log.write( Log.HELP, "  target: ", verifier.getTarget() );
+				for( String name : result.getMissing() ) {
+					Log.write( Log.HELP, "  missing: ", name );
+				}
+				for( String name : result.getExtra() ) {
+					Log.write( Log.HELP, "  extra: ", name );
+				}
+				for( String name : result.getMismatched() ) {
+					Log.write( Log.HELP, "  mismatched: ", name );
+				}
+				Log.write( Log.HELP, "  files: ", result.getFiles() );
+				Log.write( Log.HELP, "  bytes: ", result.getBytes() );
+				Log.write( Log.HELP, "  time.ms: ", System.currentTimeMillis() - start );
+				Log.write( Log.HELP, "  result: ", result.isValid() ? "valid" : "invalid" );
+			}
+		} catch( IOException exception ) {
+			Log.write( exception );
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Summarize the update history of each target. The slow runs are counted
+	 * against the runs before each of them, the same way they are flagged
+	 * when the update runs.
+	 */
+	private void printStats() {
+		MetricsHistory history = MetricsHistory.load( getDataFolder() );
+		if( history.getTargets().isEmpty() ) {
+			Log.write( Log.HELP, "No update runs recorded: ", history.getFile() );
+			return;
+		}
+
+		for( File target : history.getTargets() ) {
+			List<RunMetrics> runs = history.getRuns( target );
+			RunMetrics last = runs.get( runs.size() - 1 );
+			long stage = 0;
+			long commit = 0;
+			long throughput = 0;
+			int slow = 0;
+			for( RunMetrics run : runs ) {
+				stage += run.getStageTime();
+				commit += run.getCommitTime();
+				throughput += run.getThroughput();
+				if( history.checkSlowdown( run ) != null ) slow++;
+			}
+
+			Log.write( Log.HELP, "Stats:" );
+			Log.write( Log.HELP, "  target: ", target );
+			Log.write( Log.HELP, "  runs: ", runs.size() );
+			Log.write( Log.HELP, "  last: ", new Date( last.getTime() ) );
+			Log.write( Log.HELP, "  last.files: ", last.getFiles() );
+			Log.write( Log.HELP, "  last.bytes: ", last.getBytes() );
+			Log.write( Log.HELP, "  last.throughput: ", last.getThroughput(), " bytes/s" );
+			Log.write( Log.HELP, "  mean.stage.ms: ", stage / runs.size() );
+			Log.write( Log.HELP, "  mean.commit.ms: ", commit / runs.size() );
+			Log.write( Log.HELP, "  mean.throughput: ", throughput / runs.size(), " bytes/s" );
+			Log.write( Log.HELP, "  slow.runs: ", slow );
+			String slowdown = history.checkSlowdown( last );
+			if( slowdown != null ) Log.write( Log.HELP, "  last.slowdown: ", slowdown );
+		}
+	}
+
+	private void createManifests() {
+		for( String value : parameters.getValues( UpdaterFlag.MANIFEST ) ) {
+			try {
+				File archive = new File( value ).getCanonicalFile();
+				long start = System.currentTimeMillis();
+				UpdateManifest manifest = UpdateManifest.create( archive );
+				manifest.store( archive );
+				Log.write( "Manifest created: ", archive, " (", manifest.size(), " files, ", System.currentTimeMillis() - start, "ms)" );
+			} catch( IOException exception ) {
+				Log.write( exception );
+			}
+		}
+	}
+
 	private void describe() {
 		try {
 			URI uri = getClass().getResource( "/META-INF/product.xml" ).toURI();
@@ -475,11 +1053,46 @@ public final class Updater implements Product {
 		Log.write( Log.HELP, "    as the target. If the launch parameter is specified then the launch" );
 		Log.write( Log.HELP, "    commands are executed after the updates have been processed." );
 		Log.write( Log.HELP, "  --launch command... [-launch.home folder]" );
+		Log.write( Log.HELP, "  --manifest <file>..." );
+		Log.write( Log.HELP, "    Add a manifest of file sizes and digests to each update archive. The" );
+		Log.write( Log.HELP, "    manifest is used to verify the archive content during an update." );
+		Log.write( Log.HELP, "  --plan --update <file file>..." );
+		Log.write( Log.HELP, "    Show the files each update adds, replaces and leaves unchanged, the bytes" );
+		Log.write( Log.HELP, "    to write and an estimated duration without changing anything." );
+		Log.write( Log.HELP, "  --verify <file folder>..." );
+		Log.write( Log.HELP, "    Check each installed folder against the archive it was installed from" );
+		Log.write( Log.HELP, "    and report missing, extra and mismatched files." );
+		Log.write( Log.HELP, "  --stats" );
+		Log.write( Log.HELP, "    Summarize the recorded updates of each target and count the updates that" );
+		Log.write( Log.HELP, "    were significantly slower than the updates before them." );
 		Log.write( Log.HELP );
 		Log.write( Log.HELP, "Options:" );
 		Log.write( Log.HELP, "  -help            Show help information." );
 		Log.write( Log.HELP, "  -version         Show version and copyright information only." );
 		Log.write( Log.HELP );
+		Log.write( Log.HELP, "  -update.swap         Stage a copy of each target folder and switch to it" );
+		Log.write( Log.HELP, "                       with a single folder rename." );
+		Log.write( Log.HELP, "  -update.defer.cleanup" );
+		Log.write( Log.HELP, "                       Remove the replaced files after the launch tasks" );
+		Log.write( Log.HELP, "                       run instead of before." );
+		Log.write( Log.HELP, "  -update.prune        Remove the files in each target folder that are not" );
+		Log.write( Log.HELP, "                       in the update archives." );
+		Log.write( Log.HELP, "  -update.store <dir>  Share identical files between target folders as" );
+		Log.write( Log.HELP, "                       hard links to a content store in the folder." );
+		Log.write( Log.HELP, "  -update.fanout       Read the archives once for consecutive updates of" );
+		Log.write( Log.HELP, "                       several targets. The targets are reverted together" );
+		Log.write( Log.HELP, "                       if any of them fails." );
+		Log.write( Log.HELP, "  -update.lock.timeout <ms>" );
+		Log.write( Log.HELP, "                       Wait this long for other updates of the same target" );
+		Log.write( Log.HELP, "                       to finish, 0 to wait as long as it takes." );
+		Log.write( Log.HELP, "  -update.retries <n>  Retry a busy file this many times, waiting longer" );
+		Log.write( Log.HELP, "                       each time, before the update is reverted." );
+		Log.write( Log.HELP, "  -io.read.rate <bps>  Limit update reads in bytes per second (K, M, G)." );
+		Log.write( Log.HELP, "  -io.write.rate <bps> Limit update writes in bytes per second (K, M, G)." );
+		Log.write( Log.HELP, "  -io.adaptive         Lower the write rate when write latency climbs." );
+		Log.write( Log.HELP, "  -io.sequential       Read the archives in stored order and write the files" );
+		Log.write( Log.HELP, "                       folder by folder, for disks that seek slowly." );
+		Log.write( Log.HELP );
 		Log.write( Log.HELP, "  -log.level <level>   Change the output log level. Levels are:" );
 		Log.write( Log.HELP, "                       none, error, warn, info, trace, debug, all" );
 		Log.write( Log.HELP, "  -log.tag             Use level tags in the console output." );
@@ -490,4 +1103,13 @@ public final class Updater implements Product {
 		Log.write( Log.HELP, "  -log.file.append     Append to the log file if file is used." );
 	}
 
+	private class ProgressListener implements UpdateListener {
+
+		@Override
+		public void progress( UpdateTask task, long bytes ) {
+			addProgress( bytes );
+		}
+
+	}
+
 }
@@ -8,12 +8,26 @@ public interface UpdaterFlag extends CommonFlag {
 
 	String ELEVATED = "-elevated";
 
+	String IO_ADAPTIVE = "-io.adaptive";
+
+	String IO_READ_RATE = "-io.read.rate";
+
+	String IO_SEQUENTIAL = "-io.sequential";
+
+	String IO_WRITE_RATE = "-io.write.rate";
+
 	String LAUNCH = "--launch";
 
 	String LAUNCH_DELAY = "-launch.delay";
 
 	String LAUNCH_HOME = "-launch.home";
 
+	String MANIFEST = "--manifest";
+
+	String PLAN = "--plan";
+
+	String STATS = "--stats";
+
 	String STDIN = "-stdin";
 
 	String UI = "-ui";
@@ -22,6 +36,22 @@ public interface UpdaterFlag extends CommonFlag {
 
 	String UPDATE = "--update";
 
+	String UPDATE_DEFER_CLEANUP = "-update.defer.cleanup";
+
 	String UPDATE_DELAY = "-update.delay";
 
+	String UPDATE_FAN_OUT = "-update.fanout";
+
+	String UPDATE_LOCK_TIMEOUT = "-update.lock.timeout";
+
+	String UPDATE_PRUNE = "-update.prune";
+
+	String UPDATE_RETRIES = "-update.retries";
+
+	String UPDATE_STORE = "-update.store";
+
+	String UPDATE_SWAP = "-update.swap";
+
+	String VERIFY = "--verify";
+
 }
@@ -0,0 +1,31 @@
+package com.parallelsymmetry.updater;
+
+/**
+ * Shows the progress of the updater to the user. The view is loaded as a
+ * service, and only when a view is requested with the UI flag.
+ */
+public interface UpdaterView {
+
+	void setTitle( String title );
+
+	void setStep( String step );
+
+	void setTask( String task );
+
+	int getProgress();
+
+	void setProgress( int value );
+
+	void setProgressMax( int max );
+
+	/**
+	 * Show the view and bring it to the front.
+	 */
+	void open();
+
+	/**
+	 * Hide the view and release its resources.
+	 */
+	void close();
+
+}
@@ -7,7 +7,7 @@ import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 
-public class UpdaterWindow extends JDialog implements KeyListener {
+public class UpdaterWindow extends JDialog implements UpdaterView, KeyListener {
 
 	private static final long serialVersionUID = -4240269349153296803L;
 
@@ -52,20 +52,37 @@ public class UpdaterWindow extends JDialog implements KeyListener {
 		window.setTask( " " );
 	}
 
+	@Override
+	public void open() {
+		pack();
+		SwingUtil.center( this );
+		setVisible( true );
+		requestFocus();
+	}
+
+	@Override
+	public void close() {
+		dispose();
+	}
+
+	@Override
 	public void setStep( String step ) {
 		updaterPanel.setStep( step );
 		pack();
 	}
 
+	@Override
 	public void setTask( String task ) {
 		updaterPanel.setTask( task );
 		pack();
 	}
 
+	@Override
 	public int getProgress() {
 		return updaterPanel.getProgress();
 	}
 
+	@Override
 	public void setProgress( int value ) {
 		updaterPanel.setProgress( value );
 	}
@@ -74,6 +91,7 @@ public class UpdaterWindow extends JDialog implements KeyListener {
 		updaterPanel.setProgressMin( min );
 	}
 
+	@Override
 	public void setProgressMax( int max ) {
 		updaterPanel.setProgressMax( max );
 	}
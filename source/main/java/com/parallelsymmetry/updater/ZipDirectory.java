@@ -0,0 +1,346 @@
+package com.parallelsymmetry.updater;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.zip.ZipException;
+
+/**
+ * A reader for the central directory of a zip file. The java.util.zip classes
+ * do not expose the external file attributes or the location of the entry
+ * records, both of which are needed by the update tasks.
+ */
+class ZipDirectory {
+
+	static final int LOCAL_SIGNATURE = 0x04034b50;
+
+	static final int CENTRAL_SIGNATURE = 0x02014b50;
+
+	static final int END_SIGNATURE = 0x06054b50;
+
+	static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+	static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+	static final int LOCAL_HEADER_SIZE = 30;
+
+	static final int CENTRAL_HEADER_SIZE = 46;
+
+	static final int END_SIZE = 22;
+
+	private static final int UNIX_HOST = 3;
+
+	private File file;
+
+	private long offset;
+
+	private long size;
+
+	private boolean zip64;
+
+	private byte[] comment;
+
+	private List<Entry> entries;
+
+	private Map<String, Entry> names;
+
+	private ZipDirectory( File file ) {
+		this.file = file;
+	}
+
+	public static ZipDirectory read( File file ) throws IOException {
+		ZipDirectory directory = new ZipDirectory( file );
+		try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+			directory.read( channel );
+		}
+		return directory;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the file offset of the central directory.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Get the size of the central directory in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public boolean isZip64() {
+		return zip64;
+	}
+
+	public byte[] getComment() {
+		return comment;
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	public Entry getEntry( String name ) {
+		return names.get( name );
+	}
+
+	private void read( FileChannel channel ) throws IOException {
+		long length = channel.size();
+		if( length < END_SIZE ) throw new ZipException( "Not a zip file: " + file );
+
+		// Search backward for the end of central directory record.
+		int tail = (int)Math.min( length, END_SIZE + 0xffff );
+		ByteBuffer buffer = readBuffer( channel, length - tail, tail );
+		int end = -1;
+		for( int index = tail - END_SIZE; index >= 0; index-- ) {
+			if( buffer.getInt( index ) == END_SIGNATURE && index + END_SIZE + (buffer.getShort( index + 20 ) & 0xffff) <= tail ) {
+				end = index;
+				break;
+			}
+		}
+		if( end < 0 ) throw new ZipException( "Not a zip file: " + file );
+
+		long count = buffer.getShort( end + 10 ) & 0xffff;
+		size = buffer.getInt( end + 12 ) & 0xffffffffL;
+		offset = buffer.getInt( end + 16 ) & 0xffffffffL;
+		comment = new byte[ buffer.getShort( end + 20 ) & 0xffff ];
+		buffer.position( end + END_SIZE );
+		buffer.get( comment );
+
+		// Use the zip64 end record if there is one.
+		long locator = length - tail + end - 20;
+		if( locator >= 0 ) {
+			ByteBuffer record = readBuffer( channel, locator, 20 );
+			if( record.getInt( 0 ) == ZIP64_LOCATOR_SIGNATURE ) {
+				ByteBuffer zip64End = readBuffer( channel, record.getLong( 8 ), 56 );
+				if( zip64End.getInt( 0 ) != ZIP64_END_SIGNATURE ) throw new ZipException( "Invalid zip64 end record: " + file );
+				count = zip64End.getLong( 32 );
+				size = zip64End.getLong( 40 );
+				offset = zip64End.getLong( 48 );
+				zip64 = true;
+			}
+		}
+
+		if( size > Integer.MAX_VALUE || offset + size > length ) throw new ZipException( "Invalid central directory: " + file );
+
+		ByteBuffer directory = readBuffer( channel, offset, (int)size );
+		entries = new ArrayList<>( (int)Math.min( count, Integer.MAX_VALUE ) );
+		names = new HashMap<>();
+		int position = 0;
+		while( position + CENTRAL_HEADER_SIZE <= size ) {
+			if( directory.getInt( position ) != CENTRAL_SIGNATURE ) break;
+			Entry entry = new Entry( directory, position );
+			position += entry.recordLength;
+			entries.add( entry );
+			names.put( entry.name, entry );
+		}
+		if( entries.size() != count ) throw new ZipException( "Invalid central directory: " + file );
+	}
+
+	/**
+	 * Get the file offset of the entry data by reading the local header.
+	 *
+	 * @param channel The archive channel
+	 * @param entry The entry
+	 * @param buffer A little endian buffer of at least the local header size
+	 * @return The file offset of the entry data
+	 */
+	static long getDataOffset( FileChannel channel, Entry entry, ByteBuffer buffer ) throws IOException {
+		long position = entry.getLocalHeaderOffset();
+		buffer.clear().limit( LOCAL_HEADER_SIZE );
+		while( buffer.hasRemaining() ) {
+			if( channel.read( buffer, position + buffer.position() ) < 0 ) throw new EOFException( "Unexpected end of file" );
+		}
+		if( buffer.getInt( 0 ) != LOCAL_SIGNATURE ) throw new ZipException( "Invalid local header: " + entry.getName() );
+		return position + LOCAL_HEADER_SIZE + (buffer.getShort( 26 ) & 0xffff) + (buffer.getShort( 28 ) & 0xffff);
+	}
+
+	static ByteBuffer readBuffer( FileChannel channel, long position, int length ) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+		while( buffer.hasRemaining() ) {
+			if( channel.read( buffer, position + buffer.position() ) < 0 ) throw new EOFException( "Unexpected end of file" );
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	public class Entry {
+
+		private String name;
+
+		private int versionMadeBy;
+
+		private int flags;
+
+		private int method;
+
+		private int dosTime;
+
+		private long crc;
+
+		private long compressedSize;
+
+		private long size;
+
+		private int externalAttributes;
+
+		private long localHeaderOffset;
+
+		private long extendedTime = -1;
+
+		private long recordOffset;
+
+		private int recordLength;
+
+		private Entry( ByteBuffer buffer, int position ) throws ZipException {
+			versionMadeBy = buffer.getShort( position + 4 ) & 0xffff;
+			flags = buffer.getShort( position + 8 ) & 0xffff;
+			method = buffer.getShort( position + 10 ) & 0xffff;
+			dosTime = buffer.getInt( position + 12 );
+			crc = buffer.getInt( position + 16 ) & 0xffffffffL;
+			compressedSize = buffer.getInt( position + 20 ) & 0xffffffffL;
+			size = buffer.getInt( position + 24 ) & 0xffffffffL;
+			int nameLength = buffer.getShort( position + 28 ) & 0xffff;
+			int extraLength = buffer.getShort( position + 30 ) & 0xffff;
+			int commentLength = buffer.getShort( position + 32 ) & 0xffff;
+			externalAttributes = buffer.getInt( position + 38 );
+			localHeaderOffset = buffer.getInt( position + 42 ) & 0xffffffffL;
+
+			recordOffset = offset + position;
+			recordLength = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+			if( position + recordLength > buffer.limit() ) throw new ZipException( "Invalid central directory: " + file );
+
+			byte[] bytes = new byte[ nameLength ];
+			buffer.get( position + CENTRAL_HEADER_SIZE, bytes );
+			// Names are read as UTF-8 like java.util.zip.ZipFile does by default.
+			name = new String( bytes, StandardCharsets.UTF_8 );
+
+			readExtra( buffer, position + CENTRAL_HEADER_SIZE + nameLength, extraLength );
+		}
+
+		private void readExtra( ByteBuffer buffer, int position, int length ) {
+			int end = position + length;
+			while( position + 4 <= end ) {
+				int tag = buffer.getShort( position ) & 0xffff;
+				int dataLength = buffer.getShort( position + 2 ) & 0xffff;
+				int data = position + 4;
+				if( tag == 0x0001 ) {
+					if( size == 0xffffffffL && data + 8 <= end ) {
+						size = buffer.getLong( data );
+						data += 8;
+					}
+					if( compressedSize == 0xffffffffL && data + 8 <= end ) {
+						compressedSize = buffer.getLong( data );
+						data += 8;
+					}
+					if( localHeaderOffset == 0xffffffffL && data + 8 <= end ) localHeaderOffset = buffer.getLong( data );
+				} else if( tag == 0x5455 && dataLength >= 5 && (buffer.get( data ) & 0x01) != 0 ) {
+					// The extended timestamp modification time in seconds.
+					extendedTime = (buffer.getInt( data + 1 ) & 0xffffffffL) * 1000;
+				}
+				position += 4 + dataLength;
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith( "/" );
+		}
+
+		public int getFlags() {
+			return flags;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		public int getDosTime() {
+			return dosTime;
+		}
+
+		/**
+		 * Get the modification time of the entry in milliseconds, or -1 if the
+		 * entry does not have a valid time.
+		 */
+		public long getLastModifiedTime() {
+			if( extendedTime >= 0 ) return extendedTime;
+			int date = dosTime >>> 16;
+			int time = dosTime & 0xffff;
+			try {
+				LocalDateTime value = LocalDateTime.of( ((date >> 9) & 0x7f) + 1980, (date >> 5) & 0x0f, date & 0x1f, (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time & 0x1f) << 1 );
+				return value.atZone( ZoneId.systemDefault() ).toInstant().toEpochMilli();
+			} catch( DateTimeException exception ) {
+				return -1;
+			}
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public int getExternalAttributes() {
+			return externalAttributes;
+		}
+
+		/**
+		 * Get the unix permission bits of the entry.
+		 *
+		 * @return The permission bits or -1 if the entry was not created on a unix
+		 * host
+		 */
+		public int getUnixMode() {
+			if( (versionMadeBy >> 8) != UNIX_HOST ) return -1;
+			int mode = externalAttributes >>> 16;
+			return mode == 0 ? -1 : mode & 07777;
+		}
+
+		public long getLocalHeaderOffset() {
+			return localHeaderOffset;
+		}
+
+		/**
+		 * Get the file offset of the central directory record for this entry.
+		 */
+		public long getRecordOffset() {
+			return recordOffset;
+		}
+
+		public int getRecordLength() {
+			return recordLength;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+	}
+
+}
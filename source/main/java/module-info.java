@@ -8,4 +8,8 @@ module com.parallelsymmetry.updater {
 	requires java.management;
 
 	exports com.parallelsymmetry.updater;
+
+	uses com.parallelsymmetry.updater.UpdaterView;
+
+	provides com.parallelsymmetry.updater.UpdaterView with com.parallelsymmetry.updater.UpdaterWindow;
 }
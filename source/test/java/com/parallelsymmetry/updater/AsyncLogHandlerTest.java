@@ -0,0 +1,143 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.log.Log;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncLogHandlerTest {
+
+	@Test
+	public void testCloseWritesQueuedRecords() {
+		RecordingHandler recorder = new RecordingHandler( null );
+		AsyncLogHandler handler = new AsyncLogHandler( recorder );
+		for( int index = 0; index < 100; index++ ) {
+			handler.publish( new LogRecord( Log.INFO, "Record " + index ) );
+		}
+		handler.close();
+
+		assertEquals( 100, recorder.records.size() );
+		assertEquals( "Record 0", recorder.records.get( 0 ).getMessage() );
+		assertEquals( "Record 99", recorder.records.get( 99 ).getMessage() );
+		assertTrue( recorder.closed );
+	}
+
+	@Test
+	public void testPublishDoesNotBlockWhenFull() {
+		CountDownLatch latch = new CountDownLatch( 1 );
+		RecordingHandler recorder = new RecordingHandler( latch );
+		AsyncLogHandler handler = new AsyncLogHandler( recorder, 4 );
+
+		// The writer is blocked on the first record so the buffer fills up.
+		for( int index = 0; index < 20; index++ ) {
+			handler.publish( new LogRecord( Log.DEBUG, "Record " + index ) );
+		}
+		assertTrue( handler.getDropped() > 0 );
+
+		latch.countDown();
+		handler.close();
+		LogRecord last = recorder.records.get( recorder.records.size() - 1 );
+		assertTrue( last.getMessage().startsWith( "Log buffer full" ) );
+	}
+
+	@Test
+	public void testPublishKeepsWarningsWhenFull() throws Exception {
+		CountDownLatch latch = new CountDownLatch( 1 );
+		RecordingHandler recorder = new RecordingHandler( latch );
+		AsyncLogHandler handler = new AsyncLogHandler( recorder, 4 );
+
+		for( int index = 0; index < 20; index++ ) {
+			handler.publish( new LogRecord( Log.DEBUG, "Record " + index ) );
+		}
+		Thread publisher = new Thread( () -> {
+			handler.publish( new LogRecord( Log.WARN, "Warning" ) );
+			handler.publish( new LogRecord( Log.ERROR, "Error" ) );
+		} );
+		publisher.start();
+
+		latch.countDown();
+		publisher.join();
+		handler.close();
+		List<String> messages = recorder.records.stream().map( LogRecord::getMessage ).toList();
+		assertTrue( messages.contains( "Warning" ) );
+		assertTrue( messages.contains( "Error" ) );
+		assertTrue( messages.indexOf( "Warning" ) < messages.indexOf( "Error" ) );
+	}
+
+	@Test
+	public void testFlushKeepsOrder() throws Exception {
+		RecordingHandler recorder = new RecordingHandler( null );
+		AsyncLogHandler handler = new AsyncLogHandler( recorder );
+		Thread flusher = new Thread( () -> {
+			for( int index = 0; index < 1000; index++ ) {
+				handler.flush();
+			}
+		} );
+		flusher.start();
+		for( int index = 0; index < 5000; index++ ) {
+			handler.publish( new LogRecord( Log.INFO, String.valueOf( index ) ) );
+		}
+		flusher.join();
+		handler.close();
+
+		int expected = 0;
+		for( LogRecord record : recorder.records ) {
+			assertEquals( String.valueOf( expected++ ), record.getMessage() );
+		}
+		assertEquals( 5000, expected );
+	}
+
+	@Test
+	public void testLevelFiltersRecords() {
+		RecordingHandler recorder = new RecordingHandler( null );
+		recorder.setLevel( Log.INFO );
+		AsyncLogHandler handler = new AsyncLogHandler( recorder );
+		handler.publish( new LogRecord( Log.DEBUG, "Debug" ) );
+		handler.publish( new LogRecord( Log.WARN, "Warn" ) );
+		handler.close();
+
+		assertEquals( 1, recorder.records.size() );
+		assertEquals( "Warn", recorder.records.get( 0 ).getMessage() );
+	}
+
+	private static class RecordingHandler extends Handler {
+
+		private final List<LogRecord> records = new CopyOnWriteArrayList<>();
+
+		private final CountDownLatch latch;
+
+		private boolean closed;
+
+		public RecordingHandler( CountDownLatch latch ) {
+			this.latch = latch;
+		}
+
+		@Override
+		public void publish( LogRecord record ) {
+			if( latch != null ) {
+				try {
+					latch.await();
+				} catch( InterruptedException exception ) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			records.add( record );
+		}
+
+		@Override
+		public void flush() {}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+	}
+
+}
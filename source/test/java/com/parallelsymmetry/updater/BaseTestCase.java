@@ -43,6 +43,8 @@ public abstract class BaseTestCase {
 		Log.setLevel( Log.NONE );
 
 		FileUtil.delete( target );
+		InstallIndex.getFile( target ).delete();
+		CleanupJournal.of( target ).getFile().delete();
 		target.mkdirs();
 		assertTrue( target.exists() );
 
@@ -0,0 +1,75 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.FileUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FanOutUpdateTaskTest extends BaseTestCase {
+
+	private File tenant = new File( target.getParentFile(), "tenant" );
+
+	@BeforeEach
+	public void setupTenant() throws Exception {
+		FileUtil.delete( tenant );
+		InstallIndex.getFile( tenant ).delete();
+		tenant.mkdirs();
+		FileUtil.unzip( update0, tenant );
+	}
+
+	@Test
+	public void testExecute() throws Throwable {
+		FanOutUpdateTask task = new FanOutUpdateTask( List.of( new FileUpdateTask( update1, target ), new FileUpdateTask( update1, tenant ) ) );
+		assertEquals( 2 * new FileUpdateTask( update1, target ).getSize(), task.getSize() );
+		task.execute();
+
+		File tenantSample1 = new File( tenant, "sample.1.txt" );
+		assertEquals( "Sample 1 Version 1", FileUtil.load( sample1 ).trim() );
+		assertEquals( "Sample 1 Version 1", FileUtil.load( tenantSample1 ).trim() );
+		assertEquals( "File 2.2 Version 1", FileUtil.load( new File( tenant, "folder2/file.2.2.txt" ) ).trim() );
+
+		// The tenant files are linked to the files extracted for the first target.
+		Object key = Files.readAttributes( sample1.toPath(), BasicFileAttributes.class ).fileKey();
+		if( key != null ) assertEquals( key, Files.readAttributes( tenantSample1.toPath(), BasicFileAttributes.class ).fileKey() );
+	}
+
+	@Test
+	public void testExecuteRevertsAllTargets() throws Throwable {
+		FileUpdateTask failing = new FileUpdateTask( update1, tenant );
+		failing.setFault( ( phase, entry ) -> {
+			if( phase == UpdatePhase.COMMIT ) throw new IOException( "Commit failed" );
+		} );
+
+		FanOutUpdateTask task = new FanOutUpdateTask( List.of( new FileUpdateTask( update1, target ), failing ) );
+		assertThrows( IOException.class, task::execute );
+		assertEquals( "Sample 1 Version 0", FileUtil.load( sample1 ).trim() );
+		assertEquals( "Sample 1 Version 0", FileUtil.load( new File( tenant, "sample.1.txt" ) ).trim() );
+		assertFalse( sample2.exists() );
+		assertFalse( new File( tenant, "sample.2.txt" ).exists() );
+		assertFalse( new File( target, "sample.1.txt.del" ).exists() );
+	}
+
+	@Test
+	public void testGroup() {
+		List<UpdateTask> tasks = FanOutUpdateTask.group( List.of( new FileUpdateTask( update1, target ), new FileUpdateTask( update1, tenant ), new FileUpdateTask( update2, target ) ) );
+		assertEquals( 2, tasks.size() );
+		assertEquals( 2, ((FanOutUpdateTask)tasks.get( 0 )).getTasks().size() );
+		assertTrue( tasks.get( 1 ) instanceof FileUpdateTask );
+	}
+
+	@Test
+	public void testGroupSeparatesRepeatedTarget() {
+		List<UpdateTask> tasks = FanOutUpdateTask.group( List.of( new FileUpdateTask( update1, target ), new FileUpdateTask( update1, tenant ), new FileUpdateTask( update1, target ) ) );
+		assertEquals( 2, tasks.size() );
+		assertEquals( 2, ((FanOutUpdateTask)tasks.get( 0 )).getTasks().size() );
+		assertEquals( target, ((FileUpdateTask)tasks.get( 1 )).getTarget() );
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.FileUtil;
+import com.parallelsymmetry.utility.TextUtil;
+import com.parallelsymmetry.utility.log.Log;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import javax.management.ObjectName;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A benchmark of the heap allocated per entry when applying an archive of many
+ * small files. Enable it with -Dupdater.benchmark=true.
+ */
+@EnabledIfSystemProperty( named = "updater.benchmark", matches = "true" )
+public class FileUpdateTaskAllocationTest {
+
+	private static final int ENTRIES = 20000;
+
+	private File folder = new File( "target/test/allocation" );
+
+	@BeforeEach
+	public void setup() {
+		Log.setLevel( Log.NONE );
+	}
+
+	@Test
+	public void testAllocationPerEntry() throws Throwable {
+		FileUtil.delete( folder );
+		folder.mkdirs();
+		File archive = new File( folder, "update.zip" );
+		createArchive( archive );
+
+		// Warm up the code paths before measuring.
+		File warmup = new File( folder, "warmup" );
+		warmup.mkdirs();
+		new FileUpdateTask( archive, warmup ).execute();
+
+		File target = new File( folder, "target" );
+		target.mkdirs();
+		long start = getAllocatedBytes();
+		long time = System.nanoTime();
+		new FileUpdateTask( archive, target ).execute();
+		long allocated = getAllocatedBytes() - start;
+		time = System.nanoTime() - time;
+
+		System.out.println( "entries=" + ENTRIES + " allocated/entry=" + allocated / ENTRIES + " bytes time/entry=" + time / ENTRIES / 1000 + "us" );
+		FileUtil.delete( folder );
+	}
+
+	private void createArchive( File archive ) throws IOException {
+		try( ZipOutputStream output = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( archive ) ) ) ) {
+			for( int index = 0; index < ENTRIES; index++ ) {
+				output.putNextEntry( new ZipEntry( "folder" + (index / 100) + "/file" + index + ".txt" ) );
+				output.write( ("File " + index).getBytes( TextUtil.DEFAULT_CHARSET ) );
+				output.closeEntry();
+			}
+		}
+	}
+
+	private long getAllocatedBytes() throws Exception {
+		ObjectName name = new ObjectName( ManagementFactory.THREAD_MXBEAN_NAME );
+		Object[] parameters = new Object[]{ Thread.currentThread().getId() };
+		String[] signature = new String[]{ long.class.getName() };
+		return (Long)ManagementFactory.getPlatformMBeanServer().invoke( name, "getThreadAllocatedBytes", parameters, signature );
+	}
+
+}
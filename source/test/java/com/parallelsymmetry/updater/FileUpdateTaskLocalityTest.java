@@ -0,0 +1,175 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.FileUtil;
+import com.parallelsymmetry.utility.TextUtil;
+import com.parallelsymmetry.utility.log.Log;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A benchmark of sequential I/O ordering on a simulated high latency file
+ * system. The archive has its central directory shuffled, as an archive
+ * rewritten by another tool can, so the default order reads it at random.
+ * Each read that does not continue from the previous entry is charged a seek
+ * and each write or rename in another folder than the previous one is charged
+ * a folder lookup. Enable it with -Dupdater.benchmark=true.
+ */
+@EnabledIfSystemProperty( named = "updater.benchmark", matches = "true" )
+public class FileUpdateTaskLocalityTest {
+
+	private static final int FOLDERS = 40;
+
+	private static final int FILES_PER_FOLDER = 50;
+
+	private static final long SEEK_NANOS = 2000000;
+
+	private static final long FOLDER_NANOS = 500000;
+
+	private File folder = new File( "target/test/locality" );
+
+	@BeforeEach
+	public void setup() {
+		Log.setLevel( Log.NONE );
+	}
+
+	@Test
+	public void testSequentialOrder() throws Throwable {
+		FileUtil.delete( folder );
+		folder.mkdirs();
+		File archive = new File( folder, "update.zip" );
+		createArchive( archive );
+		shuffleCentralDirectory( archive, new Random( 1 ) );
+
+		// The position of each entry in the archive.
+		Map<String, Integer> positions = new HashMap<>();
+		List<ZipDirectory.Entry> entries = new ArrayList<>( ZipDirectory.read( archive ).getEntries() );
+		entries.sort( Comparator.comparingLong( ZipDirectory.Entry::getLocalHeaderOffset ) );
+		for( ZipDirectory.Entry entry : entries ) {
+			positions.put( entry.getName(), positions.size() );
+		}
+
+		Cost unordered = run( archive, positions, false );
+		Cost ordered = run( archive, positions, true );
+		System.out.println( "unordered: " + unordered );
+		System.out.println( "sequential: " + ordered );
+
+		assertTrue( ordered.seeks < unordered.seeks );
+		assertTrue( ordered.folders < unordered.folders );
+		FileUtil.delete( folder );
+	}
+
+	private Cost run( File archive, Map<String, Integer> positions, boolean sequential ) throws Throwable {
+		File target = new File( folder, sequential ? "sequential" : "unordered" );
+		target.mkdirs();
+
+		Cost cost = new Cost();
+		FileUpdateTask task = new FileUpdateTask( archive, target );
+		task.setSequential( sequential );
+		task.setFault( ( phase, name ) -> cost.charge( phase, name, positions.get( name ) ) );
+
+		long start = System.nanoTime();
+		task.execute();
+		cost.time = (System.nanoTime() - start) / 1000000;
+		return cost;
+	}
+
+	private void createArchive( File archive ) throws IOException {
+		StringBuilder content = new StringBuilder();
+		while( content.length() < 4096 ) {
+			content.append( "Locality benchmark content " ).append( content.length() ).append( '\n' );
+		}
+		try( ZipOutputStream output = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( archive ) ) ) ) {
+			for( int folder = 0; folder < FOLDERS; folder++ ) {
+				for( int file = 0; file < FILES_PER_FOLDER; file++ ) {
+					output.putNextEntry( new ZipEntry( "folder" + folder + "/file" + file + ".txt" ) );
+					output.write( (file + "\n" + content).getBytes( TextUtil.DEFAULT_CHARSET ) );
+					output.closeEntry();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Shuffle the records of the central directory in place. The local headers
+	 * and the data stay where they are.
+	 */
+	private void shuffleCentralDirectory( File archive, Random random ) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap( Files.readAllBytes( archive.toPath() ) ).order( ByteOrder.LITTLE_ENDIAN );
+		int end = buffer.capacity() - 22;
+		assertEquals( 0x06054b50, buffer.getInt( end ) );
+		int size = buffer.getInt( end + 12 );
+		int offset = buffer.getInt( end + 16 );
+
+		List<byte[]> records = new ArrayList<>();
+		int position = offset;
+		while( position < offset + size ) {
+			int length = 46 + (buffer.getShort( position + 28 ) & 0xffff) + (buffer.getShort( position + 30 ) & 0xffff) + (buffer.getShort( position + 32 ) & 0xffff);
+			byte[] record = new byte[ length ];
+			buffer.get( position, record );
+			records.add( record );
+			position += length;
+		}
+		Collections.shuffle( records, random );
+
+		buffer.position( offset );
+		for( byte[] record : records ) {
+			buffer.put( record );
+		}
+		Files.write( archive.toPath(), buffer.array() );
+	}
+
+	private static class Cost {
+
+		private int seeks;
+
+		private int folders;
+
+		private long time;
+
+		private int lastPosition = -2;
+
+		private String lastFolder;
+
+		private synchronized void charge( UpdatePhase phase, String name, Integer position ) {
+			long nanos = 0;
+			if( phase == UpdatePhase.STAGE && position != null ) {
+				if( position != lastPosition + 1 ) {
+					seeks++;
+					nanos += SEEK_NANOS;
+				}
+				lastPosition = position;
+			}
+
+			String folder = name.substring( 0, name.lastIndexOf( '/' ) + 1 );
+			if( !folder.equals( lastFolder ) ) {
+				folders++;
+				nanos += FOLDER_NANOS;
+			}
+			lastFolder = folder;
+
+			if( nanos > 0 ) LockSupport.parkNanos( nanos );
+		}
+
+		@Override
+		public String toString() {
+			return "seeks=" + seeks + " folder switches=" + folders + " time=" + time + "ms";
+		}
+
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.FileUtil;
+import com.parallelsymmetry.utility.TextUtil;
+import com.parallelsymmetry.utility.log.Log;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Measures the cost of reverting a failed update on large archives. Failures
+ * are injected at set points while staging and committing and the target tree
+ * is checked to be restored exactly after each failure.
+ * <p>
+ * The entry counts are set with the updater.scale.entries system property as
+ * a comma separated list, for example -Dupdater.scale.entries=10000,100000,1000000.
+ * Enable it with -Dupdater.benchmark=true.
+ */
+@EnabledIfSystemProperty( named = "updater.benchmark", matches = "true" )
+public class FileUpdateTaskScaleTest {
+
+	private static final String ENTRIES = "updater.scale.entries";
+
+	private static final int FILES_PER_FOLDER = 100;
+
+	private File folder = new File( "target/test/scale" );
+
+	@BeforeEach
+	public void setup() {
+		Log.setLevel( Log.NONE );
+	}
+
+	@Test
+	public void testRevertAtScale() throws Exception {
+		for( String value : System.getProperty( ENTRIES, "10000" ).split( "," ) ) {
+			testRevert( Integer.parseInt( value.trim() ) );
+		}
+	}
+
+	private void testRevert( int count ) throws Exception {
+		FileUtil.delete( folder );
+		File target = new File( folder, "target" );
+		File archive = new File( folder, "update.zip" );
+		target.mkdirs();
+
+		// Install half of the files so the update both replaces and adds files.
+		createTree( target, count / 2 );
+		createArchive( archive, count );
+		Map<String, Long> snapshot = snapshot( target );
+
+		runFault( archive, target, snapshot, count, UpdatePhase.STAGE, 1 );
+		runFault( archive, target, snapshot, count, UpdatePhase.STAGE, count / 2 );
+		runFault( archive, target, snapshot, count, UpdatePhase.STAGE, count );
+		runFault( archive, target, snapshot, count, UpdatePhase.COMMIT, 1 );
+		runFault( archive, target, snapshot, count, UpdatePhase.COMMIT, count / 2 );
+		runFault( archive, target, snapshot, count, UpdatePhase.COMMIT, count );
+
+		FileUtil.delete( folder );
+	}
+
+	private void runFault( File archive, File target, Map<String, Long> snapshot, int count, UpdatePhase phase, int point ) throws Exception {
+		long[] failed = new long[ 1 ];
+		FileUpdateTask task = new FileUpdateTask( archive, target );
+		task.setFault( new UpdateFault() {
+
+			private int checks;
+
+			@Override
+			public void check( UpdatePhase current, String entry ) throws IOException {
+				if( current != phase || ++checks < point ) return;
+				failed[ 0 ] = System.nanoTime();
+				throw new IOException( "Injected fault at " + phase + " " + point );
+			}
+
+		} );
+
+		long start = System.nanoTime();
+		IOException exception = assertThrows( IOException.class, task::execute );
+		long end = System.nanoTime();
+		assertTrue( exception.getMessage().startsWith( "Injected fault" ) );
+
+		long revert = (end - failed[ 0 ]) / 1000000;
+		long total = (end - start) / 1000000;
+		System.out.println( "entries=" + count + " fault=" + phase + "@" + point + " revert=" + revert + "ms total=" + total + "ms" );
+
+		assertEquals( snapshot, snapshot( target ), "Tree not restored after " + phase + " fault at " + point );
+	}
+
+	private void createTree( File target, int count ) throws IOException {
+		for( int index = 0; index < count; index++ ) {
+			File file = new File( target, getName( index ) );
+			file.getParentFile().mkdirs();
+			Files.write( file.toPath(), getContent( index, 0 ) );
+		}
+	}
+
+	private void createArchive( File archive, int count ) throws IOException {
+		try( ZipOutputStream output = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( archive ) ) ) ) {
+			for( int index = 0; index < count; index++ ) {
+				output.putNextEntry( new ZipEntry( getName( index ) ) );
+				output.write( getContent( index, 1 ) );
+				output.closeEntry();
+			}
+		}
+	}
+
+	private String getName( int index ) {
+		return "folder" + (index / FILES_PER_FOLDER) + "/file" + index + ".txt";
+	}
+
+	private byte[] getContent( int index, int version ) {
+		return ("File " + index + " Version " + version).getBytes( TextUtil.DEFAULT_CHARSET );
+	}
+
+	/**
+	 * Map the relative path of every file in the tree to the CRC of its content
+	 * and every folder to -1.
+	 */
+	private Map<String, Long> snapshot( File target ) throws IOException {
+		Map<String, Long> snapshot = new TreeMap<>();
+		Path root = target.toPath();
+		Files.walkFileTree( root, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory( Path folder, BasicFileAttributes attributes ) {
+				snapshot.put( root.relativize( folder ).toString(), -1L );
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) throws IOException {
+				CRC32 crc = new CRC32();
+				crc.update( Files.readAllBytes( file ) );
+				snapshot.put( root.relativize( file ).toString(), crc.getValue() );
+				return FileVisitResult.CONTINUE;
+			}
+
+		} );
+		return snapshot;
+	}
+
+}
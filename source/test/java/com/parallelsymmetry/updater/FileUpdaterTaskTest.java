@@ -3,8 +3,30 @@ package com.parallelsymmetry.updater;
 import com.parallelsymmetry.utility.FileUtil;
 import org.junit.jupiter.api.Test;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 public class FileUpdaterTaskTest extends BaseTestCase {
 
@@ -31,4 +53,446 @@ public class FileUpdaterTaskTest extends BaseTestCase {
 		assertEquals( "File 2.2 Version 2", FileUtil.load( file2_2 ).trim() );
 	}
 
+	@Test
+	public void testExecuteSequential() throws Throwable {
+		List<String> names = new ArrayList<>();
+		FileUpdateTask task = new FileUpdateTask( update1, target );
+		task.setSequential( true );
+		task.setFault( ( phase, name ) -> names.add( phase + " " + name ) );
+		task.execute();
+		assertEquals( "Sample 2 Version 1", FileUtil.load( sample2 ).trim() );
+		assertEquals( "File 1.2 Version 1", FileUtil.load( file1_2 ).trim() );
+
+		// The files of each folder are committed together.
+		List<String> commits = new ArrayList<>();
+		for( String name : names ) {
+			if( name.startsWith( UpdatePhase.COMMIT + " " ) ) commits.add( name );
+		}
+		assertEquals( List.of( "COMMIT sample.1.txt", "COMMIT sample.2.txt", "COMMIT folder1/file.1.1.txt", "COMMIT folder1/file.1.2.txt", "COMMIT folder2/file.2.1.txt", "COMMIT folder2/file.2.2.txt" ), commits );
+	}
+
+	@Test
+	public void testExecuteWithMultipleSources() throws Throwable {
+		FileUpdateTask task = new FileUpdateTask( update1, target );
+		task.addSource( update0 );
+
+		// The files in both archives are only extracted from the last archive.
+		assertEquals( 4 * 20 + 19 + 20, task.getSize() );
+		AtomicLong written = new AtomicLong();
+		task.setListener( new UpdateListener() {
+
+			@Override
+			public void progress( UpdateTask task, long bytes ) {
+				written.addAndGet( bytes );
+			}
+
+		} );
+		task.execute();
+
+		assertEquals( task.getSize(), written.get() );
+		assertEquals( "Sample 1 Version 0", FileUtil.load( sample1 ).trim() );
+		assertEquals( "Sample 2 Version 1", FileUtil.load( sample2 ).trim() );
+		assertEquals( "File 1.1 Version 1", FileUtil.load( file1_1 ).trim() );
+		assertEquals( "File 1.2 Version 1", FileUtil.load( file1_2 ).trim() );
+		assertEquals( "File 2.1 Version 1", FileUtil.load( file2_1 ).trim() );
+		assertEquals( "File 2.2 Version 0", FileUtil.load( file2_2 ).trim() );
+	}
+
+	@Test
+	public void testGetSizeReadsArchivesOnce() throws Throwable {
+		File archive = new File( target.getParentFile(), "size.zip" );
+		Files.copy( update1.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		FileUpdateTask task = new FileUpdateTask( archive, target );
+		long size = task.getSize();
+		assertTrue( size > 0 );
+
+		// The size comes from the archives read the first time.
+		assertTrue( archive.delete() );
+		assertEquals( size, task.getSize() );
+	}
+
+	@Test
+	public void testExecuteReturnsPrefetch() throws Throwable {
+		long budget = FileUpdateTask.getPrefetchBudget();
+		FileUpdateTask task = new FileUpdateTask( update1, target );
+		task.prepare();
+		assertEquals( budget - update1.length(), FileUpdateTask.getPrefetchBudget() );
+
+		task.execute();
+		assertEquals( budget, FileUpdateTask.getPrefetchBudget() );
+		assertEquals( "Sample 1 Version 1", FileUtil.load( sample1 ).trim() );
+	}
+
+	@Test
+	public void testExecuteWithSwap() throws Throwable {
+		FileUpdateTask task = new FileUpdateTask( update1, target );
+		task.setSwap( true );
+		task.execute();
+		assertEquals( "Sample 1 Version 1", FileUtil.load( sample1 ).trim() );
+		assertEquals( "Sample 2 Version 1", FileUtil.load( sample2 ).trim() );
+		assertEquals( "File 1.1 Version 1", FileUtil.load( file1_1 ).trim() );
+		assertEquals( "File 2.2 Version 1", FileUtil.load( file2_2 ).trim() );
+
+		task = new FileUpdateTask( update2, target );
+		task.setSwap( true );
+		task.execute();
+		assertEquals( "Sample 1 Version 2", FileUtil.load( sample1 ).trim() );
+		assertEquals( "Sample 2 Version 2", FileUtil.load( sample2 ).trim() );
+		assertEquals( "File 1.2 Version 2", FileUtil.load( file1_2 ).trim() );
+		assertEquals( "File 2.1 Version 2", FileUtil.load( file2_1 ).trim() );
+
+		assertFalse( new File( target.getParentFile(), target.getName() + ".add" ).exists() );
+		assertFalse( new File( target.getParentFile(), target.getName() + ".del" ).exists() );
+	}
+
+	@Test
+	public void testExecuteWithSwapKeepsUnchangedFiles() throws Throwable {
+		File extra = new File( folder2, "extra.txt" );
+		Files.writeString( extra.toPath(), "Extra" );
+
+		FileUpdateTask task = new FileUpdateTask( update1, target );
+		task.setSwap( true );
+		task.execute();
+		assertEquals( "Extra", FileUtil.load( extra ).trim() );
+		assertEquals( "File 2.2 Version 1", FileUtil.load( file2_2 ).trim() );
+	}
+
+	@Test
+	public void testExecuteWithDeferredCleanup() throws Throwable {
+		File backup = new File( target, "sample.1.txt.del" );
+		CleanupJournal journal = CleanupJournal.of( target );
+
+		FileUpdateTask task = new FileUpdateTask( update1, target );
+		task.setDeferCleanup( true );
+		task.execute();
+		assertEquals( "Sample 1 Version 1", FileUtil.load( sample1 ).trim() );
+		assertEquals( "Sample 1 Version 0", FileUtil.load( backup ).trim() );
+		assertTrue( journal.exists() );
+
+		task.cleanup();
+		assertFalse( backup.exists() );
+		assertFalse( journal.exists() );
+
+		// A cleanup that did not run is finished by the next update.
+		task = new FileUpdateTask( update2, target );
+		task.setDeferCleanup( true );
+		task.execute();
+		assertTrue( backup.exists() );
+		new FileUpdateTask( update1, target ).execute();
+		assertFalse( journal.exists() );
+		assertFalse( backup.exists() );
+		assertEquals( "Sample 1 Version 1", FileUtil.load( sample1 ).trim() );
+	}
+
+	@Test
+	public void testCleanupOnlyRemovesTargetBackups() throws Throwable {
+		File parent = target.getAbsoluteFile().getParentFile();
+		File other = new File( parent, "other.del" );
+		File backup = new File( parent, target.getName() + FileUpdateTask.DEL_SUFFIX );
+		Files.writeString( other.toPath(), "Other" );
+		Files.writeString( backup.toPath(), "Backup" );
+
+		try {
+			CleanupJournal.of( target ).record( List.of( other, backup ) );
+			new FileUpdateTask( update1, target ).cleanup();
+			assertTrue( other.exists() );
+			assertFalse( backup.exists() );
+			assertFalse( CleanupJournal.of( target ).exists() );
+		} finally {
+			other.delete();
+			backup.delete();
+		}
+	}
+
+	@Test
+	public void testExecuteWithPrune() throws Throwable {
+		File folder3 = new File( target, "folder3" );
+		File old1 = new File( target, "old.txt" );
+		File old2 = new File( folder3, "old.txt" );
+		folder3.mkdirs();
+		Files.writeString( old1.toPath(), "Old 1" );
+		Files.writeString( old2.toPath(), "Old 2" );
+
+		// A failed commit restores the removed files.
+		FileUpdateTask task = new FileUpdateTask( update1, target );
+		task.setPrune( true );
+		task.setFault( ( phase, entry ) -> {
+			if( phase == UpdatePhase.COMMIT ) throw new IOException( "Commit failed" );
+		} );
+		assertThrows( IOException.class, task::execute );
+		assertEquals( "Old 1", FileUtil.load( old1 ).trim() );
+		assertEquals( "Old 2", FileUtil.load( old2 ).trim() );
+		assertEquals( "Sample 1 Version 0", FileUtil.load( sample1 ).trim() );
+
+		task = new FileUpdateTask( update1, target );
+		task.setPrune( true );
+		task.execute();
+		assertFalse( old1.exists() );
+		assertFalse( old2.exists() );
+		assertFalse( folder3.exists() );
+		assertEquals( "Sample 1 Version 1", FileUtil.load( sample1 ).trim() );
+		assertEquals( "File 2.2 Version 1", FileUtil.load( file2_2 ).trim() );
+	}
+
+	@Test
+	public void testExecuteWithRemovalList() throws Throwable {
+		File archive = new File( target.getParentFile(), "remove.zip" );
+		try( ZipFile zip = new ZipFile( update1 ); ZipOutputStream output = new ZipOutputStream( new FileOutputStream( archive ) ) ) {
+			for( ZipEntry entry : Collections.list( zip.entries() ) ) {
+				output.putNextEntry( new ZipEntry( entry.getName() ) );
+				zip.getInputStream( entry ).transferTo( output );
+				output.closeEntry();
+			}
+			writeEntry( output, UpdateArchives.REMOVE_ENTRY, "# Files removed in version 1\nfolder2/old.txt\nsample.1.txt\n" );
+		}
+		File old = new File( folder2, "old.txt" );
+		File keep = new File( folder2, "keep.txt" );
+		Files.writeString( old.toPath(), "Old" );
+		Files.writeString( keep.toPath(), "Keep" );
+
+		FileUpdateTask task = new FileUpdateTask( archive, target );
+		task.setSwap( true );
+		task.execute();
+		assertFalse( old.exists() );
+		assertEquals( "Keep", FileUtil.load( keep ).trim() );
+		// Files the archive provides are not removed.
+		assertEquals( "Sample 1 Version 1", FileUtil.load( sample1 ).trim() );
+		assertFalse( new File( target, UpdateArchives.REMOVE_ENTRY ).exists() );
+	}
+
+	@Test
+	public void testExecuteWithStore() throws Throwable {
+		File archive = new File( target.getParentFile(), "manifest.zip" );
+		Files.copy( update1.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		UpdateManifest.create( archive ).store( archive );
+		File store = new File( target.getParentFile(), "store" );
+		File tenant = new File( target.getParentFile(), "tenant" );
+		FileUtil.delete( store );
+		FileUtil.delete( tenant );
+		InstallIndex.getFile( tenant ).delete();
+		tenant.mkdirs();
+
+		FileUpdateTask task = new FileUpdateTask( archive, target );
+		task.setStore( store );
+		task.execute();
+		task = new FileUpdateTask( archive, tenant );
+		task.setStore( store );
+		task.execute();
+
+		File tenantSample1 = new File( tenant, "sample.1.txt" );
+		assertEquals( "Sample 1 Version 1", FileUtil.load( tenantSample1 ).trim() );
+		Object key = Files.readAttributes( sample1.toPath(), BasicFileAttributes.class ).fileKey();
+		if( key == null ) return;
+		assertEquals( key, Files.readAttributes( tenantSample1.toPath(), BasicFileAttributes.class ).fileKey() );
+
+		// Blobs are only collected when no target links to them.
+		BlobStore blobs = new BlobStore( store );
+		assertEquals( 0, blobs.collect() );
+		FileUtil.delete( tenant );
+		assertEquals( 0, blobs.collect() );
+		FileUtil.delete( target );
+		assertEquals( 6, blobs.collect() );
+	}
+
+	@Test
+	public void testExecuteWithChangedBlob() throws Throwable {
+		File archive = new File( target.getParentFile(), "manifest.zip" );
+		Files.copy( update1.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		UpdateManifest.create( archive ).store( archive );
+		File store = new File( target.getParentFile(), "store" );
+		File tenant = new File( target.getParentFile(), "tenant" );
+		FileUtil.delete( store );
+		FileUtil.delete( tenant );
+		InstallIndex.getFile( tenant ).delete();
+		tenant.mkdirs();
+
+		FileUpdateTask task = new FileUpdateTask( archive, target );
+		task.setStore( store );
+		task.execute();
+
+		// Change an installed file in place, and with it the blob, keeping the size.
+		String content = FileUtil.load( sample1 );
+		Files.writeString( sample1.toPath(), content.replace( '1', '9' ) );
+
+		task = new FileUpdateTask( archive, tenant );
+		task.setStore( store );
+		task.execute();
+
+		File tenantSample1 = new File( tenant, "sample.1.txt" );
+		assertEquals( content, FileUtil.load( tenantSample1 ) );
+		Object key = Files.readAttributes( sample1.toPath(), BasicFileAttributes.class ).fileKey();
+		if( key == null ) return;
+		assertNotEquals( key, Files.readAttributes( tenantSample1.toPath(), BasicFileAttributes.class ).fileKey() );
+	}
+
+	@Test
+	public void testExecuteWithManifest() throws Throwable {
+		File archive = new File( target.getParentFile(), "manifest.zip" );
+		Files.copy( update1.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		UpdateManifest.create( archive ).store( archive );
+
+		new FileUpdateTask( archive, target ).execute();
+		assertEquals( "Sample 1 Version 1", FileUtil.load( sample1 ).trim() );
+		assertEquals( "File 2.2 Version 1", FileUtil.load( file2_2 ).trim() );
+		assertFalse( new File( target, UpdateManifest.ENTRY ).exists() );
+
+		// Applying the same archive again skips the unchanged files.
+		new FileUpdateTask( archive, target ).execute();
+		assertEquals( "Sample 1 Version 1", FileUtil.load( sample1 ).trim() );
+	}
+
+	@Test
+	public void testExecuteWithInstallIndex() throws Throwable {
+		File archive = new File( target.getParentFile(), "manifest.zip" );
+		Files.copy( update1.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		UpdateManifest.create( archive ).store( archive );
+
+		new FileUpdateTask( archive, target ).execute();
+		InstallIndex index = InstallIndex.load( target );
+		assertEquals( UpdateManifest.digest( sample1 ), index.getDigest( "sample.1.txt", sample1.toPath() ) );
+		assertEquals( UpdateManifest.digest( file2_2 ), index.getDigest( "folder2/file.2.2.txt", file2_2.toPath() ) );
+
+		// A file changed since it was indexed is read and replaced again.
+		Files.writeString( sample1.toPath(), "Sample 1 Changed" );
+		assertNull( index.getDigest( "sample.1.txt", sample1.toPath() ) );
+		new FileUpdateTask( archive, target ).execute();
+		assertEquals( "Sample 1 Version 1", FileUtil.load( sample1 ).trim() );
+		assertNotNull( InstallIndex.load( target ).getDigest( "sample.1.txt", sample1.toPath() ) );
+	}
+
+	@Test
+	public void testExecuteWithTamperedManifest() throws Throwable {
+		File archive = new File( target.getParentFile(), "tampered.zip" );
+		Files.copy( update1.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		UpdateManifest manifest = UpdateManifest.create( archive );
+		UpdateManifest.Entry entry = manifest.getEntry( "sample.2.txt" );
+		manifest.add( new UpdateManifest.Entry( entry.getPath(), entry.getSize(), UpdateManifest.digest( sample1 ), entry.getMode() ) );
+		manifest.store( archive );
+
+		assertThrows( IOException.class, () -> new FileUpdateTask( archive, target ).execute() );
+		assertEquals( "Sample 1 Version 0", FileUtil.load( sample1 ).trim() );
+		assertEquals( "File 2.2 Version 0", FileUtil.load( file2_2 ).trim() );
+		assertFalse( sample2.exists() );
+		assertFalse( new File( target, "sample.1.txt.del" ).exists() );
+		assertFalse( new File( target, "sample.2.txt.add" ).exists() );
+	}
+
+	@Test
+	public void testExecuteRestoresModeAndTime() throws Throwable {
+		File archive = new File( target.getParentFile(), "mode.zip" );
+		FileTime time = FileTime.from( 1300000000, TimeUnit.SECONDS );
+		try( ZipOutputStream output = new ZipOutputStream( new FileOutputStream( archive ) ) ) {
+			ZipEntry entry = new ZipEntry( "bin/run.sh" );
+			entry.setLastModifiedTime( time );
+			output.putNextEntry( entry );
+			output.write( "#!/bin/sh\n".getBytes() );
+			output.closeEntry();
+		}
+
+		// Mark the entry as created on unix with mode 0755.
+		ZipDirectory.Entry entry = ZipDirectory.read( archive ).getEntry( "bin/run.sh" );
+		try( RandomAccessFile file = new RandomAccessFile( archive, "rw" ) ) {
+			file.seek( entry.getRecordOffset() + 4 );
+			file.write( new byte[]{ 20, 3 } );
+			file.seek( entry.getRecordOffset() + 38 );
+			file.write( new byte[]{ 0, 0, (byte)0xed, (byte)0x81 } );
+		}
+		assertEquals( 0755, ZipDirectory.read( archive ).getEntry( "bin/run.sh" ).getUnixMode() );
+
+		new FileUpdateTask( archive, target ).execute();
+
+		File script = new File( target, "bin/run.sh" );
+		assertEquals( time.toMillis(), Files.getLastModifiedTime( script.toPath() ).toMillis() );
+		if( Files.getFileAttributeView( script.toPath(), PosixFileAttributeView.class ) != null ) {
+			assertTrue( Files.getPosixFilePermissions( script.toPath() ).contains( PosixFilePermission.OWNER_EXECUTE ) );
+			assertTrue( Files.getPosixFilePermissions( script.toPath() ).contains( PosixFilePermission.OTHERS_EXECUTE ) );
+			assertFalse( Files.getPosixFilePermissions( script.toPath() ).contains( PosixFilePermission.GROUP_WRITE ) );
+		}
+	}
+
+	@Test
+	public void testExecuteRejectsEntriesOutsideTarget() throws Throwable {
+		File escaped = new File( target.getParentFile(), "escaped.txt" ).getAbsoluteFile();
+		escaped.delete();
+		for( String name : List.of( escaped.getPath().replace( File.separatorChar, '/' ), "../escaped.txt", "folder1/../../escaped.txt", "C:/escaped.txt" ) ) {
+			File archive = new File( target.getParentFile(), "escape.zip" );
+			try( ZipOutputStream output = new ZipOutputStream( new FileOutputStream( archive ) ) ) {
+				writeEntry( output, "sample.1.txt", "Sample 1 Version 3" );
+				writeEntry( output, name, "Escaped" );
+			}
+
+			assertThrows( IOException.class, () -> new FileUpdateTask( archive, target ).execute(), name );
+			assertFalse( escaped.exists(), name );
+			assertEquals( "Sample 1 Version 0", FileUtil.load( sample1 ).trim() );
+		}
+	}
+
+	@Test
+	public void testExecuteRestoresTreeAfterFault() throws Throwable {
+		File folder = new File( target.getParentFile(), "restore" );
+		File tree = new File( folder, "target" );
+		File archive = new File( folder, "update.zip" );
+		FileUtil.delete( folder );
+		InstallIndex.getFile( tree ).delete();
+		tree.mkdirs();
+
+		// Half of the files are installed so the update both replaces and adds files.
+		int count = 300;
+		for( int index = 0; index < count / 2; index++ ) {
+			File file = new File( tree, "folder" + (index / 50) + "/file" + index + ".txt" );
+			file.getParentFile().mkdirs();
+			Files.writeString( file.toPath(), "File " + index + " Version 0" );
+		}
+		try( ZipOutputStream output = new ZipOutputStream( new FileOutputStream( archive ) ) ) {
+			for( int index = 0; index < count; index++ ) {
+				writeEntry( output, "folder" + (index / 50) + "/file" + index + ".txt", "File " + index + " Version 1" );
+			}
+		}
+		List<String> snapshot = snapshot( tree );
+
+		for( UpdatePhase phase : List.of( UpdatePhase.STAGE, UpdatePhase.COMMIT ) ) {
+			for( int point : List.of( 1, count / 2, count ) ) {
+				AtomicLong checks = new AtomicLong();
+				FileUpdateTask task = new FileUpdateTask( archive, tree );
+				task.setFault( ( current, entry ) -> {
+					if( current == phase && checks.incrementAndGet() == point ) throw new IOException( "Injected fault" );
+				} );
+				assertThrows( IOException.class, task::execute );
+				assertEquals( snapshot, snapshot( tree ), "Tree not restored after " + phase + " fault at " + point );
+			}
+		}
+		FileUtil.delete( folder );
+	}
+
+	/**
+	 * List the relative path and content of every file and the relative path of
+	 * every folder in a tree, in order.
+	 */
+	private List<String> snapshot( File tree ) throws IOException {
+		Path root = tree.toPath();
+		try( Stream<Path> paths = Files.walk( root ) ) {
+			List<String> snapshot = new ArrayList<>();
+			for( Path path : (Iterable<Path>)paths.sorted()::iterator ) {
+				String content = Files.isDirectory( path ) ? "" : Files.readString( path );
+				snapshot.add( root.relativize( path ) + " " + content );
+			}
+			return snapshot;
+		}
+	}
+
+	private void writeEntry( ZipOutputStream output, String name, String content ) throws IOException {
+		writeEntry( output, name, content.getBytes( StandardCharsets.UTF_8 ) );
+	}
+
+	private void writeEntry( ZipOutputStream output, String name, byte[] data ) throws IOException {
+		ZipEntry entry = new ZipEntry( name );
+		CRC32 crc = new CRC32();
+		crc.update( data );
+		entry.setSize( data.length );
+		entry.setCrc( crc.getValue() );
+		output.putNextEntry( entry );
+		output.write( data );
+		output.closeEntry();
+	}
+
 }
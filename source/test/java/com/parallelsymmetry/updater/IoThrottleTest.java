@@ -0,0 +1,48 @@
+package com.parallelsymmetry.updater;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IoThrottleTest {
+
+	@Test
+	public void testParseRate() {
+		assertEquals( 500, IoThrottle.parseRate( "500" ) );
+		assertEquals( 2048, IoThrottle.parseRate( "2K" ) );
+		assertEquals( 3L << 20, IoThrottle.parseRate( "3m" ) );
+		assertEquals( 1L << 30, IoThrottle.parseRate( "1G" ) );
+	}
+
+	@Test
+	public void testUnlimited() throws Exception {
+		assertFalse( IoThrottle.NONE.isLimited() );
+
+		long start = System.nanoTime();
+		IoThrottle.NONE.acquireRead( 1L << 30 );
+		IoThrottle.NONE.acquireWrite( 1L << 30 );
+		assertTrue( System.nanoTime() - start < 100000000L );
+	}
+
+	@Test
+	public void testWriteRate() throws Exception {
+		int rate = 256 * 1024;
+		IoThrottle throttle = new IoThrottle( 0, rate );
+
+		// The first second worth of bytes is a burst, the rest is rate limited.
+		long start = System.nanoTime();
+		throttle.acquireWrite( rate );
+		throttle.acquireWrite( rate / 4 );
+		long elapsed = (System.nanoTime() - start) / 1000000;
+
+		assertTrue( elapsed >= 200, "Elapsed: " + elapsed );
+	}
+
+	@Test
+	public void testAdaptiveRequiresWriteRate() {
+		IoThrottle throttle = new IoThrottle( 1024, 0 );
+		throttle.setAdaptive( true );
+		assertFalse( throttle.isAdaptive() );
+	}
+
+}
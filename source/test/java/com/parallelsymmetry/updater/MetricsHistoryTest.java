@@ -0,0 +1,115 @@
+package com.parallelsymmetry.updater;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsHistoryTest extends BaseTestCase {
+
+	private File folder = new File( "target/test/metrics" );
+
+	private File other = new File( "target/test/other folder" ).getAbsoluteFile();
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		new File( folder, MetricsHistory.FILE_NAME ).delete();
+		MetricsHistory history = MetricsHistory.load( folder );
+		assertTrue( history.getTargets().isEmpty() );
+
+		history.add( new RunMetrics( 1000, target.getAbsoluteFile(), 200, 50, 4096, 4 ) );
+		history.add( new RunMetrics( 2000, other, 300, 60, 8192, 8 ) );
+		history.save();
+
+		history = MetricsHistory.load( folder );
+		assertEquals( 2, history.getTargets().size() );
+		RunMetrics run = history.getRuns( other ).get( 0 );
+		assertEquals( 2000, run.getTime() );
+		assertEquals( other, run.getTarget() );
+		assertEquals( 300, run.getStageTime() );
+		assertEquals( 60, run.getCommitTime() );
+		assertEquals( 8192, run.getBytes() );
+		assertEquals( 8, run.getFiles() );
+	}
+
+	@Test
+	public void testSaveKeepsLatestRuns() throws Exception {
+		new File( folder, MetricsHistory.FILE_NAME ).delete();
+		MetricsHistory history = MetricsHistory.load( folder );
+		for( int index = 0; index < 30; index++ ) {
+			history.add( new RunMetrics( index, other, 100, 0, 1000, 1 ) );
+		}
+
+		// Runs saved by another updater are kept.
+		MetricsHistory concurrent = MetricsHistory.load( folder );
+		concurrent.add( new RunMetrics( 99, target.getAbsoluteFile(), 100, 0, 1000, 1 ) );
+		concurrent.save();
+		history.save();
+
+		history = MetricsHistory.load( folder );
+		List<RunMetrics> runs = history.getRuns( other );
+		assertEquals( 20, runs.size() );
+		assertEquals( 10, runs.get( 0 ).getTime() );
+		assertEquals( 29, runs.get( 19 ).getTime() );
+		assertEquals( 1, history.getRuns( target.getAbsoluteFile() ).size() );
+	}
+
+	@Test
+	public void testConcurrentSavesKeepAllRuns() throws Exception {
+		new File( folder, MetricsHistory.FILE_NAME ).delete();
+		List<Thread> threads = new ArrayList<>();
+		for( int index = 0; index < 4; index++ ) {
+			File target = new File( other, String.valueOf( index ) );
+			Thread thread = new Thread( () -> {
+				try {
+					for( int run = 0; run < 5; run++ ) {
+						MetricsHistory history = MetricsHistory.load( folder );
+						history.add( new RunMetrics( run, target, 100, 0, 1000, 1 ) );
+						history.save();
+					}
+				} catch( Exception exception ) {
+					throw new RuntimeException( exception );
+				}
+			} );
+			threads.add( thread );
+			thread.start();
+		}
+		for( Thread thread : threads ) {
+			thread.join();
+		}
+
+		MetricsHistory history = MetricsHistory.load( folder );
+		assertEquals( 4, history.getTargets().size() );
+		for( File target : history.getTargets() ) {
+			assertEquals( 5, history.getRuns( target ).size() );
+		}
+	}
+
+	@Test
+	public void testCheckSlowdown() {
+		List<RunMetrics> baseline = new ArrayList<>();
+		for( int index = 0; index < 4; index++ ) {
+			baseline.add( run( 1000 + index * 10 ) );
+		}
+
+		// Too few runs to compare.
+		assertNull( MetricsHistory.checkSlowdown( run( 5000 ), baseline ) );
+
+		baseline.add( run( 1000 ) );
+		assertNull( MetricsHistory.checkSlowdown( run( 990 ), baseline ) );
+		assertNull( MetricsHistory.checkSlowdown( run( 1100 ), baseline ) );
+		assertNotNull( MetricsHistory.checkSlowdown( run( 2000 ), baseline ) );
+
+		// A target with a widely varying baseline is not flagged for an ordinary run.
+		List<RunMetrics> varied = List.of( run( 400 ), run( 1600 ), run( 500 ), run( 1500 ), run( 1000 ) );
+		assertNull( MetricsHistory.checkSlowdown( run( 1500 ), varied ) );
+	}
+
+	private RunMetrics run( long duration ) {
+		return new RunMetrics( 0, target, duration, 0, 1000000, 10 );
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.parallelsymmetry.updater;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelCopyTest {
+
+	private File folder = new File( "target/test/copy" );
+
+	@BeforeEach
+	public void setup() {
+		folder.mkdirs();
+	}
+
+	@Test
+	public void testCombineCrc() {
+		byte[] data = new byte[ 100000 ];
+		new Random( 1 ).nextBytes( data );
+
+		for( int split : new int[]{ 0, 1, 4096, 65537, data.length } ) {
+			CRC32 first = new CRC32();
+			first.update( data, 0, split );
+			CRC32 second = new CRC32();
+			second.update( data, split, data.length - split );
+			CRC32 whole = new CRC32();
+			whole.update( data );
+			assertEquals( whole.getValue(), ParallelCopy.combineCrc( first.getValue(), second.getValue(), data.length - split ) );
+		}
+	}
+
+	@Test
+	public void testCopy() throws Exception {
+		// Two and a half chunks after a header.
+		int offset = 1000;
+		byte[] data = new byte[ (int)(ParallelCopy.CHUNK_SIZE * 5 / 2) ];
+		new Random( 2 ).nextBytes( data );
+		byte[] archive = new byte[ offset + data.length ];
+		System.arraycopy( data, 0, archive, offset, data.length );
+
+		File source = new File( folder, "source.bin" );
+		File target = new File( folder, "target.bin" );
+		Files.write( source.toPath(), archive );
+		Files.deleteIfExists( target.toPath() );
+
+		MessageDigest digest = UpdateManifest.createDigest();
+		AtomicLong progress = new AtomicLong();
+		long crc;
+		try( FileChannel input = FileChannel.open( source.toPath(), StandardOpenOption.READ ); FileChannel output = FileChannel.open( target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+			crc = ParallelCopy.copy( input, offset, data.length, output, IoThrottle.NONE, digest, progress::addAndGet );
+		}
+
+		CRC32 expected = new CRC32();
+		expected.update( data );
+		assertEquals( expected.getValue(), crc );
+		assertEquals( data.length, progress.get() );
+		assertTrue( Arrays.equals( UpdateManifest.createDigest().digest( data ), digest.digest() ) );
+		assertTrue( Arrays.equals( data, Files.readAllBytes( target.toPath() ) ) );
+	}
+
+}
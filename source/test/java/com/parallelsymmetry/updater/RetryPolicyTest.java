@@ -0,0 +1,69 @@
+package com.parallelsymmetry.updater;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetryPolicyTest {
+
+	@Test
+	public void testGetDelay() {
+		RetryPolicy policy = new RetryPolicy( 10, 10, 100 );
+		assertEquals( 10, policy.getDelay( 1 ) );
+		assertEquals( 20, policy.getDelay( 2 ) );
+		assertEquals( 80, policy.getDelay( 4 ) );
+		assertEquals( 100, policy.getDelay( 5 ) );
+		assertEquals( 100, policy.getDelay( 64 ) );
+	}
+
+	@Test
+	public void testRunRetriesBusyFile() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		AtomicLong waited = new AtomicLong();
+		String result = new RetryPolicy( 3, 1, 10 ).run( () -> {
+			if( attempts.incrementAndGet() < 3 ) throw new FileSystemException( "busy.txt", null, "The process cannot access the file because it is being used by another process" );
+			return "done";
+		}, "rename", "busy.txt", waited::addAndGet );
+
+		assertEquals( "done", result );
+		assertEquals( 3, attempts.get() );
+		assertEquals( 3, waited.get() );
+	}
+
+	@Test
+	public void testRunGivesUp() {
+		AtomicInteger attempts = new AtomicInteger();
+		assertThrows( FileSystemException.class, () -> new RetryPolicy( 2, 1, 10 ).run( () -> {
+			attempts.incrementAndGet();
+			throw new FileSystemException( "busy.txt" );
+		}, "rename", "busy.txt", null ) );
+		assertEquals( 3, attempts.get() );
+	}
+
+	@Test
+	public void testRunDoesNotRetryMissingFile() {
+		AtomicInteger attempts = new AtomicInteger();
+		assertThrows( NoSuchFileException.class, () -> RetryPolicy.DEFAULT.run( () -> {
+			attempts.incrementAndGet();
+			throw new NoSuchFileException( "missing.txt" );
+		}, "rename", "missing.txt", null ) );
+		assertEquals( 1, attempts.get() );
+	}
+
+	@Test
+	public void testRunDoesNotRetryAccessDenied() {
+		AtomicInteger attempts = new AtomicInteger();
+		assertThrows( AccessDeniedException.class, () -> RetryPolicy.DEFAULT.run( () -> {
+			attempts.incrementAndGet();
+			throw new AccessDeniedException( "locked.txt" );
+		}, "rename", "locked.txt", null ) );
+		assertEquals( 1, attempts.get() );
+	}
+
+}
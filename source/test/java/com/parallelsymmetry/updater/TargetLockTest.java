@@ -0,0 +1,78 @@
+package com.parallelsymmetry.updater;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TargetLockTest extends BaseTestCase {
+
+	@Test
+	public void testAcquireWaitsForRelease() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Long> waiter;
+			long released;
+			try( TargetLock lock = TargetLock.acquire( target, 0 ) ) {
+				waiter = executor.submit( () -> {
+					try( TargetLock other = TargetLock.acquire( target, 0 ) ) {
+						return System.nanoTime();
+					}
+				} );
+				Thread.sleep( 200 );
+				assertFalse( waiter.isDone() );
+				released = System.nanoTime();
+			}
+			assertTrue( waiter.get( 5, TimeUnit.SECONDS ) >= released );
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testAcquireTimesOut() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try( TargetLock lock = TargetLock.acquire( target, 0 ) ) {
+			Future<TargetLock> waiter = executor.submit( () -> TargetLock.acquire( target, 100 ) );
+			ExecutionException exception = assertThrows( ExecutionException.class, () -> waiter.get( 5, TimeUnit.SECONDS ) );
+			assertTrue( exception.getCause() instanceof IOException );
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// The lock can be acquired again after a timed out waiter.
+		TargetLock.acquire( target, 100 ).close();
+	}
+
+	@Test
+	public void testAcquireRemovesStaleTicket() throws Exception {
+		// A ticket left by an update that died is not locked.
+		Path queue = new File( target.getAbsoluteFile().getParentFile(), target.getName() + ".queue" ).toPath();
+		Files.createDirectories( queue );
+		Path stale = queue.resolve( "0000000000000000000-1-1" );
+		Files.write( stale, new byte[ 0 ] );
+
+		TargetLock.acquire( target, 1000 ).close();
+		assertFalse( Files.exists( stale ) );
+	}
+
+	@Test
+	public void testCloseRemovesLockFiles() throws Exception {
+		File parent = target.getAbsoluteFile().getParentFile();
+		File lockFile = new File( parent, target.getName() + TargetLock.SUFFIX );
+		File queue = new File( parent, target.getName() + ".queue" );
+
+		try( TargetLock lock = TargetLock.acquire( target, 1000 ) ) {
+			assertTrue( lockFile.exists() );
+			assertTrue( queue.exists() );
+		}
+		assertFalse( lockFile.exists() );
+		assertFalse( queue.exists() );
+	}
+
+}
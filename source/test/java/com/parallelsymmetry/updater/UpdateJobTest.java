@@ -0,0 +1,116 @@
+package com.parallelsymmetry.updater;
+
+import com.parallelsymmetry.utility.FileUtil;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpdateJobTest extends BaseTestCase {
+
+	@Test
+	public void testExecute() throws Exception {
+		List<String> events = new CopyOnWriteArrayList<>();
+		AtomicLong bytes = new AtomicLong();
+		UpdateListener listener = new UpdateListener() {
+
+			@Override
+			public void started( UpdateTask task ) {
+				events.add( "started" );
+			}
+
+			@Override
+			public void phase( UpdateTask task, UpdatePhase phase ) {
+				events.add( phase.name() );
+			}
+
+			@Override
+			public void progress( UpdateTask task, long count ) {
+				bytes.addAndGet( count );
+			}
+
+			@Override
+			public void finished( UpdateTask task, Throwable failure ) {
+				events.add( failure == null ? "finished" : "failed" );
+			}
+
+		};
+
+		UpdateJob job = UpdateJob.builder().update( update1, target ).update( update2, target ).listener( listener ).build();
+		assertEquals( 1, job.getUpdateTasks().size() );
+		job.execute().get( 10, TimeUnit.SECONDS );
+
+		assertEquals( "Sample 1 Version 2", FileUtil.load( sample1 ).trim() );
+		assertEquals( "File 1.1 Version 2", FileUtil.load( file1_1 ).trim() );
+		assertEquals( List.of( "started", "STAGE", "COMMIT", "finished" ), events );
+		assertEquals( job.getUpdateTasks().get( 0 ).getSize(), bytes.get() );
+	}
+
+	@Test
+	public void testExecuteWithFanOutReportsTargetTasks() throws Exception {
+		File tenant = new File( target.getParentFile(), "tenant" );
+		FileUtil.delete( tenant );
+		InstallIndex.getFile( tenant ).delete();
+		tenant.mkdirs();
+
+		Set<UpdateTask> started = ConcurrentHashMap.newKeySet();
+		Set<UpdateTask> phased = ConcurrentHashMap.newKeySet();
+		Set<UpdateTask> progressed = ConcurrentHashMap.newKeySet();
+		Set<UpdateTask> finished = ConcurrentHashMap.newKeySet();
+		UpdateListener listener = new UpdateListener() {
+
+			@Override
+			public void started( UpdateTask task ) {
+				started.add( task );
+			}
+
+			@Override
+			public void phase( UpdateTask task, UpdatePhase phase ) {
+				phased.add( task );
+			}
+
+			@Override
+			public void progress( UpdateTask task, long count ) {
+				progressed.add( task );
+			}
+
+			@Override
+			public void finished( UpdateTask task, Throwable failure ) {
+				finished.add( task );
+			}
+
+		};
+
+		UpdateJob job = UpdateJob.builder().update( update1, target ).update( update1, tenant ).fanOut( true ).listener( listener ).build();
+		job.execute().get( 10, TimeUnit.SECONDS );
+
+		Set<UpdateTask> tasks = new HashSet<>( job.getUpdateTasks() );
+		assertEquals( 2, tasks.size() );
+		assertEquals( tasks, started );
+		assertEquals( tasks, phased );
+		assertEquals( tasks, progressed );
+		assertEquals( tasks, finished );
+	}
+
+	@Test
+	public void testExecuteWithFailure() throws Exception {
+		AtomicBoolean launched = new AtomicBoolean();
+		UpdateJob job = UpdateJob.builder().update( new File( source, "missing.zip" ), target ).launch( () -> launched.set( true ) ).build();
+
+		ExecutionException exception = assertThrows( ExecutionException.class, () -> job.execute().get( 10, TimeUnit.SECONDS ) );
+		assertTrue( exception.getCause() instanceof IllegalArgumentException );
+		assertTrue( launched.get() );
+		assertEquals( "Sample 1 Version 0", FileUtil.load( sample1 ).trim() );
+	}
+
+}
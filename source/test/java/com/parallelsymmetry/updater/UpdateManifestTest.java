@@ -0,0 +1,50 @@
+package com.parallelsymmetry.updater;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpdateManifestTest extends BaseTestCase {
+
+	@Test
+	public void testCreateAndStore() throws Exception {
+		File archive = new File( target.getParentFile(), "manifest.zip" );
+		Files.copy( update1.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+
+		UpdateManifest manifest = UpdateManifest.create( archive );
+		assertEquals( 6, manifest.size() );
+		assertEquals( 20, manifest.getEntry( "sample.1.txt" ).getSize() );
+
+		manifest.store( archive );
+		try( ZipFile zip = new ZipFile( archive ) ) {
+			assertEquals( 7, zip.size() );
+			UpdateManifest stored = UpdateManifest.read( zip );
+			assertEquals( 6, stored.size() );
+			for( UpdateManifest.Entry entry : manifest.getEntries() ) {
+				assertEquals( entry.getDigest(), stored.getEntry( entry.getPath() ).getDigest() );
+				try( var input = zip.getInputStream( zip.getEntry( entry.getPath() ) ) ) {
+					assertEquals( entry.getDigest(), UpdateManifest.digest( input ) );
+				}
+			}
+		}
+
+		// Storing again replaces the existing manifest.
+		manifest.store( archive );
+		try( ZipFile zip = new ZipFile( archive ) ) {
+			assertEquals( 7, zip.size() );
+		}
+	}
+
+	@Test
+	public void testReadWithoutManifest() throws Exception {
+		try( ZipFile zip = new ZipFile( update1 ) ) {
+			assertNull( UpdateManifest.read( zip ) );
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.parallelsymmetry.updater;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpdatePipelineTest {
+
+	@Test
+	public void testNextTaskPreparedWhileTaskExecutes() throws Throwable {
+		List<String> events = new CopyOnWriteArrayList<>();
+		CountDownLatch prepared = new CountDownLatch( 1 );
+		TestTask first = new TestTask( "first", events ) {
+
+			@Override
+			public void execute() throws Throwable {
+				super.execute();
+				// The second task has to be prepared before the first one finishes.
+				assertTrue( prepared.await( 5, TimeUnit.SECONDS ) );
+			}
+
+		};
+		TestTask second = new TestTask( "second", events ) {
+
+			@Override
+			public void prepare() {
+				super.prepare();
+				prepared.countDown();
+			}
+
+		};
+
+		try( UpdatePipeline pipeline = new UpdatePipeline( List.of( first, second ) ) ) {
+			pipeline.execute( 0 );
+			pipeline.execute( 1 );
+		}
+
+		assertEquals( 4, events.size() );
+		assertEquals( "prepare first", events.get( 0 ) );
+		assertEquals( "execute second", events.get( 3 ) );
+	}
+
+	@Test
+	public void testFailedPrepareStillExecutes() throws Throwable {
+		List<String> events = new CopyOnWriteArrayList<>();
+		TestTask task = new TestTask( "task", events ) {
+
+			@Override
+			public void prepare() {
+				throw new IllegalStateException( "Prepare failed" );
+			}
+
+		};
+
+		try( UpdatePipeline pipeline = new UpdatePipeline( List.of( task ) ) ) {
+			pipeline.execute( 0 );
+		}
+
+		assertEquals( List.of( "execute task" ), events );
+	}
+
+	private static class TestTask implements UpdateTask {
+
+		private String name;
+
+		private List<String> events;
+
+		public TestTask( String name, List<String> events ) {
+			this.name = name;
+			this.events = events;
+		}
+
+		@Override
+		public boolean needsElevation() {
+			return false;
+		}
+
+		@Override
+		public void prepare() {
+			events.add( "prepare " + name );
+		}
+
+		@Override
+		public void execute() throws Throwable {
+			events.add( "execute " + name );
+		}
+
+	}
+
+}
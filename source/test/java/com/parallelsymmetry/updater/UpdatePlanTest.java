@@ -0,0 +1,106 @@
+package com.parallelsymmetry.updater;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpdatePlanTest extends BaseTestCase {
+
+	@Test
+	public void testCreate() throws Exception {
+		UpdatePlan plan = UpdatePlan.create( update1, target, false );
+
+		assertFalse( plan.isVerified() );
+		assertEquals( 4, plan.getAdded() );
+		assertEquals( 2, plan.getReplaced() );
+		assertEquals( 0, plan.getUnchanged() );
+		assertEquals( 1, plan.getFolders() );
+		assertEquals( 120, plan.getWriteBytes() );
+		assertFalse( sample2.exists() );
+		assertFalse( folder1.exists() );
+	}
+
+	@Test
+	public void testCreateWithPrune() throws Exception {
+		File old = new File( folder2, "old.txt" );
+		Files.writeString( old.toPath(), "Old" );
+
+		assertEquals( 0, UpdatePlan.create( update1, target, false ).getRemoved() );
+		UpdatePlan plan = UpdatePlan.create( List.of( update1 ), target, false, true );
+		assertEquals( 1, plan.getRemoved() );
+		assertTrue( old.exists() );
+	}
+
+	@Test
+	public void testCreateWithManifest() throws Throwable {
+		File archive = new File( target.getParentFile(), "plan.zip" );
+		Files.copy( update1.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		UpdateManifest.create( archive ).store( archive );
+		new FileUpdateTask( archive, target ).execute();
+
+		UpdatePlan plan = UpdatePlan.create( archive, target, false );
+		assertTrue( plan.isVerified() );
+		assertEquals( 0, plan.getAdded() );
+		assertEquals( 0, plan.getReplaced() );
+		assertEquals( 6, plan.getUnchanged() );
+		assertEquals( 0, plan.getWriteBytes() );
+		assertEquals( 120, plan.getUnchangedBytes() );
+
+		// Skipped files are reported as progress too.
+		AtomicLong progress = new AtomicLong();
+		FileUpdateTask task = new FileUpdateTask( archive, target );
+		task.setListener( new UpdateListener() {
+
+			@Override
+			public void progress( UpdateTask task, long bytes ) {
+				progress.addAndGet( bytes );
+			}
+
+		} );
+		task.execute();
+		assertEquals( task.getSize(), progress.get() );
+		archive.delete();
+	}
+
+	@Test
+	public void testCreateSwapWithUnchangedFiles() throws Throwable {
+		File archive = new File( target.getParentFile(), "plan.zip" );
+		Files.copy( update1.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		UpdateManifest.create( archive ).store( archive );
+		new FileUpdateTask( archive, target ).execute();
+		long count;
+		try( Stream<Path> files = Files.walk( target.toPath() ) ) {
+			count = files.filter( Files::isRegularFile ).count();
+		}
+
+		// Unchanged files are linked into the new folder too.
+		UpdatePlan plan = UpdatePlan.create( archive, target, true );
+		assertEquals( 6, plan.getUnchanged() );
+		assertEquals( count, plan.getLinked() );
+		archive.delete();
+	}
+
+	@Test
+	public void testEstimate() throws Exception {
+		UpdatePlan plan = UpdatePlan.create( update1, target, false );
+		int count = target.list().length;
+		int siblings = target.getParentFile().list().length;
+		UpdatePlan.Sample sample = UpdatePlan.measure( target );
+		assertEquals( count, target.list().length );
+		assertEquals( siblings, target.getParentFile().list().length );
+		assertTrue( sample.getWriteRate() > 0 );
+		assertTrue( plan.getEstimate( sample, IoThrottle.NONE ) >= 0 );
+
+		// A throttled write rate is a lower bound on the estimate.
+		assertTrue( plan.getEstimate( sample, new IoThrottle( 0, 60 ) ) >= 2000 );
+	}
+
+}
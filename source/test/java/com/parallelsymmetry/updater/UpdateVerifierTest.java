@@ -0,0 +1,50 @@
+package com.parallelsymmetry.updater;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpdateVerifierTest extends BaseTestCase {
+
+	@Test
+	public void testVerify() throws Exception {
+		UpdateVerifier.Result result = new UpdateVerifier( List.of( update0 ), target ).verify( ForkJoinPool.commonPool() );
+		assertTrue( result.isValid() );
+		assertEquals( 39, result.getBytes() );
+	}
+
+	@Test
+	public void testVerifyReportsDifferences() throws Exception {
+		Files.writeString( sample1.toPath(), "Sample 1 Version X\n" );
+		assertTrue( file2_2.delete() );
+		Files.writeString( new File( target, "extra.txt" ).toPath(), "Extra" );
+
+		UpdateVerifier.Result result = new UpdateVerifier( List.of( update0 ), target ).verify( ForkJoinPool.commonPool() );
+		assertFalse( result.isValid() );
+		assertEquals( List.of( "sample.1.txt" ), result.getMismatched() );
+		assertEquals( List.of( "folder2/file.2.2.txt" ), result.getMissing() );
+		assertEquals( List.of( "extra.txt" ), result.getExtra() );
+	}
+
+	@Test
+	public void testVerifyWithManifest() throws Throwable {
+		File archive = new File( target.getParentFile(), "verify.zip" );
+		Files.copy( update1.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		UpdateManifest.create( archive ).store( archive );
+		new FileUpdateTask( archive, target ).execute();
+
+		UpdateVerifier verifier = new UpdateVerifier( List.of( archive ), target );
+		assertTrue( verifier.verify( ForkJoinPool.commonPool() ).isValid() );
+
+		Files.writeString( file1_1.toPath(), "File 1.1 Version X\n" );
+		assertEquals( List.of( "folder1/file.1.1.txt" ), verifier.verify( ForkJoinPool.commonPool() ).getMismatched() );
+		archive.delete();
+	}
+
+}
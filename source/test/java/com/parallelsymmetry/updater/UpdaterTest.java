@@ -7,11 +7,14 @@ import com.parallelsymmetry.utility.Version;
 import org.junit.jupiter.api.Test;
 
 import java.io.*;
+import java.net.Socket;
 import java.nio.charset.Charset;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -139,6 +142,58 @@ public class UpdaterTest extends BaseTestCase {
 		assertEquals( "File 2.2 Version 2", FileUtil.load( file2_2 ).trim() );
 	}
 
+	@Test
+	public void testWaitForElevatedContinuesWhenDone() throws Exception {
+		// The elevated updater is still removing its backups after it reports done.
+		ElevatedProcess process = new ElevatedProcess();
+		int port = updater.setupForCallback();
+		Thread callbacks = updater.startCallbacks( process );
+		try( Socket socket = new Socket( "127.0.0.1", port ) ) {
+			socket.getOutputStream().write( "done\n".getBytes( TextUtil.DEFAULT_CHARSET ) );
+		}
+
+		Thread waiter = new Thread( () -> updater.waitForElevated( process, callbacks ) );
+		waiter.start();
+		waiter.join( 5000 );
+		assertFalse( waiter.isAlive() );
+		assertTrue( process.isAlive() );
+		process.destroy();
+	}
+
+	@Test
+	public void testWaitForElevatedCollectsMetrics() throws Exception {
+		ElevatedProcess process = new ElevatedProcess();
+		int port = updater.setupForCallback();
+		Thread callbacks = updater.startCallbacks( process );
+		RunMetrics run = new RunMetrics( 1000, target.getAbsoluteFile(), 200, 50, 4096, 4 );
+		for( String message : List.of( "metrics " + run.toLine(), "done" ) ) {
+			try( Socket socket = new Socket( "127.0.0.1", port ) ) {
+				socket.getOutputStream().write( (message + "\n").getBytes( TextUtil.DEFAULT_CHARSET ) );
+			}
+		}
+
+		updater.waitForElevated( process, callbacks );
+		assertEquals( 1, updater.getElevatedRuns().size() );
+		assertEquals( run.toLine(), updater.getElevatedRuns().get( 0 ).toLine() );
+		process.destroy();
+	}
+
+	@Test
+	public void testWaitForElevatedWaitsForExitWithoutDone() throws Exception {
+		ElevatedProcess process = new ElevatedProcess();
+		updater.setupForCallback();
+		Thread callbacks = updater.startCallbacks( process );
+
+		Thread waiter = new Thread( () -> updater.waitForElevated( process, callbacks ) );
+		waiter.start();
+		waiter.join( 500 );
+		assertTrue( waiter.isAlive() );
+
+		process.destroy();
+		waiter.join( 10000 );
+		assertFalse( waiter.isAlive() );
+	}
+
 	private String getCommandLineOutput( Updater service, Level level, String... commands ) throws Exception {
 		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 		DefaultHandler handler = new DefaultHandler( new PrintStream( buffer ) );
@@ -198,11 +253,46 @@ public class UpdaterTest extends BaseTestCase {
 		assertEquals( "    as the target. If the launch parameter is specified then the launch", parser.next() );
 		assertEquals( "    commands are executed after the updates have been processed.", parser.next() );
 		assertEquals( "  --launch command... [-launch.home folder]", parser.next() );
+		assertEquals( "  --manifest <file>...", parser.next() );
+		assertEquals( "    Add a manifest of file sizes and digests to each update archive. The", parser.next() );
+		assertEquals( "    manifest is used to verify the archive content during an update.", parser.next() );
+		assertEquals( "  --plan --update <file file>...", parser.next() );
+		assertEquals( "    Show the files each update adds, replaces and leaves unchanged, the bytes", parser.next() );
+		assertEquals( "    to write and an estimated duration without changing anything.", parser.next() );
+		assertEquals( "  --verify <file folder>...", parser.next() );
+		assertEquals( "    Check each installed folder against the archive it was installed from", parser.next() );
+		assertEquals( "    and report missing, extra and mismatched files.", parser.next() );
+		assertEquals( "  --stats", parser.next() );
+		assertEquals( "    Summarize the recorded updates of each target and count the updates that", parser.next() );
+		assertEquals( "    were significantly slower than the updates before them.", parser.next() );
 		assertEquals( "", parser.next() );
 		assertEquals( "Options:", parser.next() );
 		assertEquals( "  -help            Show help information.", parser.next() );
 		assertEquals( "  -version         Show version and copyright information only.", parser.next() );
 		assertEquals( "", parser.next() );
+		assertEquals( "  -update.swap         Stage a copy of each target folder and switch to it", parser.next() );
+		assertEquals( "                       with a single folder rename.", parser.next() );
+		assertEquals( "  -update.defer.cleanup", parser.next() );
+		assertEquals( "                       Remove the replaced files after the launch tasks", parser.next() );
+		assertEquals( "                       run instead of before.", parser.next() );
+		assertEquals( "  -update.prune        Remove the files in each target folder that are not", parser.next() );
+		assertEquals( "                       in the update archives.", parser.next() );
+		assertEquals( "  -update.store <dir>  Share identical files between target folders as", parser.next() );
+		assertEquals( "                       hard links to a content store in the folder.", parser.next() );
+		assertEquals( "  -update.fanout       Read the archives once for consecutive updates of", parser.next() );
+		assertEquals( "                       several targets. The targets are reverted together", parser.next() );
+		assertEquals( "                       if any of them fails.", parser.next() );
+		assertEquals( "  -update.lock.timeout <ms>", parser.next() );
+		assertEquals( "                       Wait this long for other updates of the same target", parser.next() );
+		assertEquals( "                       to finish, 0 to wait as long as it takes.", parser.next() );
+		assertEquals( "  -update.retries <n>  Retry a busy file this many times, waiting longer", parser.next() );
+		assertEquals( "                       each time, before the update is reverted.", parser.next() );
+		assertEquals( "  -io.read.rate <bps>  Limit update reads in bytes per second (K, M, G).", parser.next() );
+		assertEquals( "  -io.write.rate <bps> Limit update writes in bytes per second (K, M, G).", parser.next() );
+		assertEquals( "  -io.adaptive         Lower the write rate when write latency climbs.", parser.next() );
+		assertEquals( "  -io.sequential       Read the archives in stored order and write the files", parser.next() );
+		assertEquals( "                       folder by folder, for disks that seek slowly.", parser.next() );
+		assertEquals( "", parser.next() );
 		assertEquals( "  -log.level <level>   Change the output log level. Levels are:", parser.next() );
 		assertEquals( "                       none, error, warn, info, trace, debug, all", parser.next() );
 		assertEquals( "  -log.tag             Use level tags in the console output.", parser.next() );
@@ -214,4 +304,50 @@ public class UpdaterTest extends BaseTestCase {
 		assertEquals( "", parser.next() );
 	}
 
+	/**
+	 * An elevated updater that runs until it is destroyed.
+	 */
+	private static class ElevatedProcess extends Process {
+
+		private CountDownLatch exit = new CountDownLatch( 1 );
+
+		@Override
+		public OutputStream getOutputStream() {
+			return OutputStream.nullOutputStream();
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return InputStream.nullInputStream();
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return InputStream.nullInputStream();
+		}
+
+		@Override
+		public int waitFor() throws InterruptedException {
+			exit.await();
+			return 0;
+		}
+
+		@Override
+		public int exitValue() {
+			if( isAlive() ) throw new IllegalThreadStateException();
+			return 0;
+		}
+
+		@Override
+		public boolean isAlive() {
+			return exit.getCount() > 0;
+		}
+
+		@Override
+		public void destroy() {
+			exit.countDown();
+		}
+
+	}
+
 }